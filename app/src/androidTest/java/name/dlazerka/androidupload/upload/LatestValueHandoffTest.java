@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class LatestValueHandoffTest extends TestCase {
+    private static final int LAST = -1;
+
+    private final List<Integer> consumed = Collections.synchronizedList(new ArrayList<Integer>());
+    private ExecutorService executor;
+    private Scheduler.Worker worker;
+    private LatestValueHandoff<Integer> handoff;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newSingleThreadExecutor();
+        worker = Schedulers.from(executor).createWorker();
+        handoff = new LatestValueHandoff<>(worker, new Action1<Integer>() {
+            @Override
+            public void call(Integer value) {
+                consumed.add(value);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** Blocks consumer's thread until released, so that values pile up meanwhile. */
+    private CountDownLatch blockWorker() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocked.await();
+        return release;
+    }
+
+    private void postLast() {
+        handoff.post(new Action0() {
+            @Override
+            public void call() {
+                consumed.add(LAST);
+            }
+        });
+    }
+
+    private void awaitWorker() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testKeepsOnlyLatest() throws Exception {
+        CountDownLatch release = blockWorker();
+        for (int i = 1; i <= 100; i++) {
+            handoff.call(i);
+        }
+        release.countDown();
+        awaitWorker();
+
+        assertThat(consumed, contains(100));
+    }
+
+    public void testPostRunsAfterLatest() throws Exception {
+        CountDownLatch release = blockWorker();
+        handoff.call(1);
+        handoff.call(2);
+        postLast();
+        release.countDown();
+        awaitWorker();
+
+        assertThat(consumed, contains(2, LAST));
+    }
+
+    /** Producer keeps going while consumer runs: values are consumed in order, and none after post. */
+    public void testOrderUnderContention() throws Exception {
+        for (int i = 1; i <= 100_000; i++) {
+            handoff.call(i);
+        }
+        postLast();
+        awaitWorker();
+
+        List<Integer> values;
+        synchronized (consumed) {
+            values = new ArrayList<>(consumed);
+        }
+        assertThat(values.get(values.size() - 1), is(LAST));
+        assertThat(values.get(values.size() - 2), is(100_000));
+        for (int i = 1; i < values.size() - 1; i++) {
+            assertTrue("Out of order at " + i, values.get(i - 1) < values.get(i));
+        }
+        assertThat(values.subList(0, values.size() - 1), everyItem(lessThanOrEqualTo(100_000)));
+    }
+
+    public void testStopReleasesWorkerAfterPending() throws Exception {
+        CountDownLatch release = blockWorker();
+        handoff.call(1);
+        handoff.stop();
+        release.countDown();
+        awaitExecutor();
+
+        assertThat(consumed, contains(1));
+        assertTrue(worker.isUnsubscribed());
+    }
+
+    private void awaitExecutor() throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -19,7 +19,6 @@ package name.dlazerka.androidupload.upload;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.SystemClock;
 import android.test.ActivityUnitTestCase;
 import android.widget.ProgressBar;
 
@@ -58,9 +57,17 @@ public class UploadActivityTest extends ActivityUnitTestCase<UploadActivity> {
 
     /**
      * Tests progress wheel stops spinning upon receiving a progress event.
+     *
+     * Status is rendered on display frames of the main thread, so activity has to subscribe there,
+     * while the event comes from another thread, as it does from an upload.
      */
-    public void testProgressBar() throws Exception {
-        getActivity().onStart();
+    public void testProgressBar() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                getActivity().onStart();
+            }
+        });
 
         final ProgressBar progressBar = (ProgressBar) getActivity().findViewById(R.id.progress_bar);
 
@@ -71,7 +78,7 @@ public class UploadActivityTest extends ActivityUnitTestCase<UploadActivity> {
             }
         }, 10000);
 
-        UploadProgress progress = new UploadProgress(10, 1000, SystemClock.uptimeMillis() - 1000);
+        UploadProgress progress = new UploadProgress(10, 1000, 10, 99_000);
         UploadStatusObservables.getObserver(FILE_PATH).onNext(new UploadStatus(progress));
 
         assertThat(UploadStatusObservables.getSubject(FILE_PATH).hasCompleted(), is(false));
@@ -83,6 +90,13 @@ public class UploadActivityTest extends ActivityUnitTestCase<UploadActivity> {
             }
         }, 10000);
         assertThat(progressBar.getProgress(), is(not(0)));
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                getActivity().onStop();
+            }
+        });
     }
 
     private void waitFor(Condition function, int millis) throws InterruptedException {
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class UploadJournalTest extends TestCase {
+    private static final Uri FILE_1 = Uri.parse("content:///some/1.jpg");
+    private static final Uri FILE_2 = Uri.parse("content:///some/2.jpg");
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("upload-journal", null);
+        assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        super.tearDown();
+    }
+
+    private static Intent newIntent(Uri filePath) {
+        Intent intent = new Intent().setClassName("name.dlazerka.androidupload", UploadService.class.getName());
+        intent.setData(filePath);
+        intent.putExtra(UploadService.EXTRA_CONTENT_TYPE, "image/jpeg");
+        intent.putExtra(UploadService.EXTRA_PROGRESS_INTENT, new Intent("progress").setData(filePath));
+        intent.putExtra(UploadService.EXTRA_FINISHED_INTENT, new Intent("finished"));
+        intent.putExtra(UploadService.EXTRA_RESUMABLE, true);
+        return intent;
+    }
+
+    public void testReplay() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+        journal.add(newIntent(FILE_2));
+        journal.setUploadUrl(FILE_1, "12345");
+        journal.setOffset(FILE_1, 1024);
+        journal.recordAttempt(FILE_1);
+        journal.recordAttempt(FILE_1);
+        journal.setSize(FILE_1, 4096);
+        journal.setNextAttemptAt(FILE_1, 1_500_000_000_000L);
+        journal.recordAttempt(FILE_2);
+        journal.remove(FILE_2);
+
+        List<UploadJournal.Entry> pending = new UploadJournal(file).getPending();
+
+        assertThat(pending, hasSize(1));
+        UploadJournal.Entry entry = pending.get(0);
+        assertThat(entry.filePath, is(FILE_1));
+        assertThat(entry.contentType, is("image/jpeg"));
+        assertThat(entry.uploadUrl, is("12345"));
+        assertThat(entry.offset, is(1024L));
+        assertThat(entry.attempts, is(2));
+        assertThat(entry.size, is(4096L));
+        assertThat(entry.nextAttemptAt, is(1_500_000_000_000L));
+    }
+
+    public void testReplayKeepsOrder() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_2));
+        journal.add(newIntent(FILE_1));
+        // Already there, doesn't move it.
+        journal.add(newIntent(FILE_2));
+
+        List<UploadJournal.Entry> pending = new UploadJournal(file).getPending();
+
+        assertThat(pending, hasSize(2));
+        assertThat(pending.get(0).filePath, is(FILE_2));
+        assertThat(pending.get(1).filePath, is(FILE_1));
+    }
+
+    public void testToIntent() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+
+        Intent intent = new UploadJournal(file).get(FILE_1).toIntent();
+
+        assertThat(intent, notNullValue());
+        assertThat(intent.getData(), is(FILE_1));
+        assertThat(intent.getComponent().getClassName(), is(UploadService.class.getName()));
+        assertThat(intent.getStringExtra(UploadService.EXTRA_CONTENT_TYPE), is("image/jpeg"));
+        assertThat(intent.getBooleanExtra(UploadService.EXTRA_RESUMABLE, false), is(true));
+        Intent progressIntent = intent.getParcelableExtra(UploadService.EXTRA_PROGRESS_INTENT);
+        assertThat(progressIntent.getAction(), is("progress"));
+        assertThat(progressIntent.getData(), is(FILE_1));
+        Intent finishedIntent = intent.getParcelableExtra(UploadService.EXTRA_FINISHED_INTENT);
+        assertThat(finishedIntent.getAction(), is("finished"));
+    }
+
+    public void testCompaction() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+        long sizeOfOne = file.length();
+        for (int i = 0; i < 1000; i++) {
+            Uri filePath = Uri.parse("content:///some/other/" + i + ".jpg");
+            journal.add(newIntent(filePath));
+            journal.setOffset(filePath, i);
+            journal.remove(filePath);
+        }
+
+        // Up to COMPACTION_MIN_RECORDS small records of the removed ones may be left.
+        assertThat(file.length(), lessThan(sizeOfOne * 100));
+        List<UploadJournal.Entry> pending = new UploadJournal(file).getPending();
+        assertThat(pending, hasSize(1));
+        assertThat(pending.get(0).filePath, is(FILE_1));
+    }
+
+    /** Progress of a single upload adds records without removing anything. */
+    public void testCompactionOfOffsets() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+        journal.setOffset(FILE_1, 0);
+        long sizeWithOffset = file.length();
+        for (int i = 1; i <= 10000; i++) {
+            journal.setOffset(FILE_1, i);
+        }
+
+        assertThat(file.length(), lessThan(sizeWithOffset * 100));
+        List<UploadJournal.Entry> pending = new UploadJournal(file).getPending();
+        assertThat(pending, hasSize(1));
+        assertThat(pending.get(0).offset, is(10000L));
+    }
+
+    public void testTruncatedRecordIsIgnored() throws Exception {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+        journal.setOffset(FILE_1, 1024);
+        journal.add(newIntent(FILE_2));
+
+        // Process killed in the middle of the last record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 10);
+        raf.close();
+
+        journal = new UploadJournal(file);
+        List<UploadJournal.Entry> pending = journal.getPending();
+        assertThat(pending, hasSize(1));
+        assertThat(pending.get(0).offset, is(1024L));
+
+        // Tail was dropped on open, so new records are readable after it.
+        journal.add(newIntent(FILE_2));
+        assertThat(new UploadJournal(file).get(FILE_2), notNullValue());
+    }
+
+    public void testRemovedIsGone() {
+        UploadJournal journal = new UploadJournal(file);
+        journal.add(newIntent(FILE_1));
+        journal.remove(FILE_1);
+
+        // Changes of a removed upload are ignored.
+        journal.setOffset(FILE_1, 1024);
+        assertThat(journal.recordAttempt(FILE_1), is(0));
+
+        UploadJournal replayed = new UploadJournal(file);
+        assertThat(replayed.getPending(), empty());
+        assertThat(replayed.get(FILE_1), nullValue());
+    }
+}
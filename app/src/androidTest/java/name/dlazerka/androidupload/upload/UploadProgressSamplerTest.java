@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import rx.functions.Action1;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class UploadProgressSamplerTest extends TestCase {
+    private static final long HOUR_MS = 3600_000;
+
+    private final List<Long> published = Collections.synchronizedList(new ArrayList<Long>());
+
+    private UploadProgressSampler newSampler(long total, long intervalMs, float stepFraction) {
+        UploadProgressSampler sampler = new UploadProgressSampler(total, intervalMs, stepFraction);
+        sampler.getObservable().subscribe(new Action1<UploadProgress>() {
+            @Override
+            public void call(UploadProgress progress) {
+                published.add(progress.getTransferred());
+            }
+        });
+        return sampler;
+    }
+
+    public void testSamplesByFraction() {
+        UploadProgressSampler sampler = newSampler(1000, HOUR_MS, 0.25f);
+        for (int i = 0; i < 100; i++) {
+            sampler.add(10);
+        }
+
+        assertThat(published, contains(250L, 500L, 750L, 1000L));
+    }
+
+    public void testLastIsPublishedOnce() {
+        UploadProgressSampler sampler = newSampler(100, HOUR_MS, 1);
+        sampler.add(100);
+        sampler.add(-10);
+        sampler.add(10);
+
+        assertThat(published, contains(100L));
+    }
+
+    /** Upload cancelled as a duplicate, then sent again after all. */
+    public void testRestart() {
+        UploadProgressSampler sampler = newSampler(100, HOUR_MS, 0.5f);
+        sampler.add(60);
+        sampler.restart();
+        sampler.add(50);
+        sampler.add(50);
+
+        assertThat(published, contains(60L, 50L, 100L));
+    }
+
+    /** Every add tries to publish, snapshots must still go out in order, and the complete one last. */
+    public void testOrderUnderContention() throws Exception {
+        final int threads = 4;
+        final int addsPerThread = 20_000;
+        final UploadProgressSampler sampler = newSampler(threads * addsPerThread, 0, 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < addsPerThread; j++) {
+                        sampler.add(1);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long previous = 0;
+        for (long transferred : published) {
+            assertThat(transferred, greaterThanOrEqualTo(previous));
+            previous = transferred;
+        }
+        assertThat(previous, is((long) threads * addsPerThread));
+        assertThat(published.indexOf(previous), is(published.size() - 1));
+    }
+}
@@ -16,11 +16,21 @@
 
 package name.dlazerka.androidupload;
 
+import android.content.res.Resources;
+
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Dzmitry Lazerka
  */
@@ -30,8 +40,15 @@ public class Application extends android.app.Application {
     public static final String UPLOAD_FORM_PARAM = "photo";
 
     public static final int NOTIFICATION_ID_UPLOAD = 1;
+    public static final int NOTIFICATION_ID_UPLOAD_SUMMARY = 2;
 
+    /** For control requests. */
     public static OkHttpClient okHttpClient;
+    /**
+     * For uploads, never times out. Shares connection pool, TLS sessions and HTTP/2 connections with
+     * {@link #okHttpClient}, so that handshake is paid once per batch, not per file and not per client.
+     */
+    public static OkHttpClient uploadClient;
 
     @Override
     public void onCreate() {
@@ -40,6 +57,43 @@ public class Application extends android.app.Application {
 
         super.onCreate();
 
-        okHttpClient = new OkHttpClient();
+        okHttpClient = createOkHttpClient(getResources());
+
+        uploadClient = okHttpClient.clone();
+        uploadClient.setWriteTimeout(0, TimeUnit.DAYS);// never
+        uploadClient.setReadTimeout(0, TimeUnit.DAYS);// never
+    }
+
+    private static OkHttpClient createOkHttpClient(Resources resources) {
+        OkHttpClient client = new OkHttpClient();
+        // Protocols (HTTP/2 by ALPN) and the TLS session cache are OkHttp defaults already, shared by clones.
+        client.setConnectionPool(new ConnectionPool(
+                resources.getInteger(R.integer.http_max_idle_connections),
+                TimeUnit.SECONDS.toMillis(resources.getInteger(R.integer.http_keep_alive_seconds))));
+        // Defaults are 10s, too short for a handshake over a poor mobile network.
+        client.setConnectTimeout(resources.getInteger(R.integer.http_connect_timeout_seconds), TimeUnit.SECONDS);
+        client.setReadTimeout(resources.getInteger(R.integer.http_read_timeout_seconds), TimeUnit.SECONDS);
+        client.setWriteTimeout(resources.getInteger(R.integer.http_read_timeout_seconds), TimeUnit.SECONDS);
+        return client;
+    }
+
+    /**
+     * Opens connection (TCP, TLS, HTTP/2) to the host of given URL in background, and leaves it in the pool,
+     * so that the next request to that host doesn't pay for handshakes.
+     */
+    public static void warmUp(String url) {
+        HttpUrl status = HttpUrl.parse(url).resolve("/status");
+        Request request = new Request.Builder().url(status).head().build();
+        okHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                logger.debug("Cannot warm up {}: {}", request.url(), e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Response response) throws IOException {
+                response.body().close();
+            }
+        });
     }
 }
@@ -164,6 +164,7 @@ public class MainActivity extends Activity {
     private void startUpload() {
         Intent finishedIntent = ThanksActivity.createIntent(this);
         Intent intent = UploadActivity.createIntent(this, photoFile, "image/jpeg", finishedIntent);
+        intent.putExtra(UploadActivity.EXTRA_DOWNSCALE_IMAGES, true);
         startActivity(intent);
     }
 }
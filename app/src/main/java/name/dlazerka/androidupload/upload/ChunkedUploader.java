@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.google.common.base.Throwables;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Uploads file in fixed-size chunks to backend's ChunkedUploadServlet, so that a dropped connection
+ * costs at most one chunk, not the whole file.
+ *
+ * Session id and number of acknowledged bytes are persisted in {@link UploadJournal}, so that a retried upload
+ * continues where previous attempt has stopped. Which chunks to send is decided by what server reports,
+ * persisted number is only a hint for the logs.
+ *
+ * With parallelism greater than one, several chunks are uploaded at once over separate connections,
+ * which helps to saturate links with high bandwidth-delay product. Server accepts chunks in any order,
+ * and assembles them into a single file when asked to complete the upload, after the last one.
+ *
+ * @author Dzmitry Lazerka
+ */
+class ChunkedUploader {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploader.class);
+
+    /** Must be not greater than ChunkedUploadServlet.MAX_CHUNK_SIZE. */
+    static final int CHUNK_SIZE = 512 * 1024;
+
+    private static final Pattern RANGE = Pattern.compile("(\\d+)-(\\d+)");
+
+    private final OkHttpClient client;
+    private final String uploadUrl;
+    private final UploadJournal journal;
+    private final Uri filePath;
+    private final String contentType;
+    private final int parallelism;
+    private final boolean gzip;
+
+    /**
+     * @param uploadUrl URL of ChunkedUploadServlet.
+     * @param parallelism How many chunks to upload at once, each over its own connection.
+     * @param gzip Whether to compress each chunk. Server decompresses them, Content-Range is of source bytes.
+     */
+    public ChunkedUploader(
+            @Nonnull Context context,
+            @Nonnull OkHttpClient client,
+            @Nonnull String uploadUrl,
+            @Nonnull Uri filePath,
+            @Nonnull String contentType,
+            int parallelism,
+            boolean gzip
+    ) {
+        if (parallelism > 1) {
+            // HTTP/2 would multiplex all the chunks over a single TCP connection, defeating the purpose.
+            // Still shares the pool, so connections are reused by the next parallel upload.
+            this.client = client.clone().setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+        } else {
+            this.client = client;
+        }
+        this.uploadUrl = uploadUrl;
+        this.journal = UploadJournal.get(context);
+        this.filePath = filePath;
+        this.contentType = contentType;
+        this.parallelism = parallelism;
+        this.gzip = gzip;
+    }
+
+    /**
+     * @param fd opened file descriptor. It's caller responsibility to close it.
+     * @param progress counts the whole file, including chunks uploaded by previous attempts.
+     * @return Response of the last request, either successful one that completed the upload, or a failed one.
+     * @throws IOException also if server hasn't got all the chunks when asked to complete, session is kept then.
+     */
+    public Response upload(ParcelFileDescriptor fd, UploadProgressSampler progress) throws IOException {
+        long length = fd.getStatSize();
+        int chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        UploadJournal.Entry entry = journal.get(filePath);
+        String sessionId = entry == null ? null : entry.uploadUrl;
+        boolean[] received = null;
+        Response response = null;
+        if (sessionId != null) {
+            logger.info("Resuming {}, {} bytes acknowledged", sessionId, entry.offset);
+            response = client.newCall(new Request.Builder().url(sessionUrl(sessionId)).tag(filePath).build()).execute();
+            if (response.isSuccessful()) {
+                received = parseRanges(response, chunkCount);
+            } else {
+                // Session expired or was deleted, start over.
+                logger.warn("Cannot resume {}: {} {}", sessionId, response.code(), response.message());
+                response.body().close();
+            }
+        }
+        if (received == null) {
+            response = createSession(length);
+            if (!response.isSuccessful()) {
+                return response;
+            }
+            sessionId = response.body().string().trim();
+            received = new boolean[chunkCount];
+            journal.setUploadUrl(filePath, sessionId);
+            journal.setOffset(filePath, 0);
+        }
+
+        long alreadyReceived = 0;
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (received[i]) {
+                alreadyReceived += getChunkLength(i, length);
+            } else {
+                missing.add(i);
+            }
+        }
+        response.body().close();
+        progress.addTransferredBefore(alreadyReceived);
+
+        ChunkWorker worker = new ChunkWorker(fd, sessionId, missing, length, alreadyReceived, progress, response);
+        if (parallelism > 1 && missing.size() > 1) {
+            runInParallel(worker, Math.min(parallelism, missing.size()));
+        } else {
+            worker.call();
+        }
+
+        response = worker.lastResponse;
+        if (response.isSuccessful()) {
+            response = complete(sessionId);
+            if (response.code() == 409) {
+                // Server misses some chunk after all, a retry resumes the session and sends it.
+                response.body().close();
+                throw new IOException("Server misses chunks of " + sessionId);
+            }
+        }
+        if (!response.isSuccessful()) {
+            if (response.code() >= 400 && response.code() < 500) {
+                // Server won't accept this session anymore, don't try to resume it.
+                clearSession();
+            }
+            return response;
+        }
+
+        clearSession();
+        return response;
+    }
+
+    /** Asks server to assemble the chunks, once they're all there. Safe to repeat. */
+    private Response complete(String sessionId) throws IOException {
+        Request request = new Request.Builder()
+                .url(sessionUrl(sessionId))
+                .tag(filePath)
+                .post(RequestBody.create(MediaType.parse("text/plain"), ""))
+                .build();
+        return client.newCall(request).execute();
+    }
+
+    /** Runs the same worker in several threads, current thread being one of them. */
+    private void runInParallel(ChunkWorker worker, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads - 1);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 1; i < threads; i++) {
+                futures.add(executor.submit(worker));
+            }
+            worker.call();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + filePath);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long getChunkLength(int index, long length) {
+        return Math.min(CHUNK_SIZE, length - (long) index * CHUNK_SIZE);
+    }
+
+    private Response createSession(long length) throws IOException {
+        Request request = new Request.Builder()
+                .url(uploadUrl)
+                .tag(filePath)
+                .header("X-Upload-Content-Type", contentType)
+                .header("X-Upload-Content-Length", String.valueOf(length))
+                .header("X-Upload-Chunk-Size", String.valueOf(CHUNK_SIZE))
+                .header("X-Upload-File-Name", filePath.getLastPathSegment())
+                .post(RequestBody.create(MediaType.parse("text/plain"), ""))
+                .build();
+        return client.newCall(request).execute();
+    }
+
+    /**
+     * Takes missing chunks one by one, and uploads them until none left, or some other worker has failed.
+     * Shared by all the threads of a single upload.
+     */
+    private class ChunkWorker implements Callable<Void> {
+        private final ParcelFileDescriptor fd;
+        private final String sessionId;
+        private final List<Integer> chunks;
+        private final long length;
+        private final UploadProgressSampler progress;
+
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        /** Bytes of chunks that server has acknowledged. */
+        private final AtomicLong acked;
+        private volatile boolean failed;
+
+        /** Guarded by this. Either the failed one, or the last successful one. */
+        private Response lastResponse;
+
+        ChunkWorker(
+                ParcelFileDescriptor fd,
+                String sessionId,
+                List<Integer> chunks,
+                long length,
+                long alreadyReceived,
+                UploadProgressSampler progress,
+                Response lastResponse
+        ) {
+            this.fd = fd;
+            this.sessionId = sessionId;
+            this.chunks = chunks;
+            this.length = length;
+            this.progress = progress;
+            this.acked = new AtomicLong(alreadyReceived);
+            this.lastResponse = lastResponse;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                int next;
+                while (!failed && (next = nextChunk.getAndIncrement()) < chunks.size()) {
+                    int index = chunks.get(next);
+                    long offset = (long) index * CHUNK_SIZE;
+                    long chunkLength = getChunkLength(index, length);
+                    Response response = putChunk(offset, chunkLength);
+                    response.body().close();
+
+                    synchronized (this) {
+                        if (failed) {
+                            return null;
+                        }
+                        lastResponse = response;
+                        if (!response.isSuccessful()) {
+                            failed = true;
+                            return null;
+                        }
+                    }
+                    journal.setOffset(filePath, acked.addAndGet(chunkLength));
+                }
+                return null;
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        private Response putChunk(long offset, long chunkLength) throws IOException {
+            UploadListeningBody body = new UploadListeningBody(fd, contentType, offset, chunkLength, gzip, progress);
+
+            String contentRange = "bytes " + offset + '-' + (offset + chunkLength - 1) + '/' + length;
+            Request.Builder request = new Request.Builder()
+                    .url(sessionUrl(sessionId))
+                    .tag(filePath)
+                    .header("Content-Range", contentRange)
+                    .put(body);
+            if (gzip) {
+                request.header("Content-Encoding", "gzip");
+            }
+            return client.newCall(request.build()).execute();
+        }
+    }
+
+    /** @return Which chunks server already has, parsed from "Range: bytes=0-999,2000-2999" header. */
+    private static boolean[] parseRanges(Response response, int chunkCount) throws IOException {
+        boolean[] result = new boolean[chunkCount];
+        String ranges = response.header("Range");
+        response.body().close();
+        if (ranges == null) {
+            return result;
+        }
+        Matcher matcher = RANGE.matcher(ranges);
+        while (matcher.find()) {
+            long first = Long.parseLong(matcher.group(1));
+            long last = Long.parseLong(matcher.group(2));
+            for (long i = first / CHUNK_SIZE; i <= last / CHUNK_SIZE && i < chunkCount; i++) {
+                result[(int) i] = true;
+            }
+        }
+        return result;
+    }
+
+    private String sessionUrl(String sessionId) {
+        return HttpUrl.parse(uploadUrl).newBuilder()
+                .addQueryParameter("id", sessionId)
+                .build()
+                .toString();
+    }
+
+    private void clearSession() {
+        journal.setUploadUrl(filePath, null);
+        journal.setOffset(filePath, 0);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Finds out whether backend already has the file, while it's being uploaded.
+ *
+ * Hashes the file (MD5, same as Blobstore does) on a thread of its own and asks backend's UploadByHashServlet.
+ * If backend has it, cancels the upload requests, which are tagged by file path.
+ * So a new file doesn't wait for hashing and lookup at all, and a duplicate is stopped after a few chunks.
+ *
+ * @author Dzmitry Lazerka
+ */
+class DuplicateCheck implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateCheck.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OkHttpClient client;
+    private final OkHttpClient uploadClient;
+    private final String url;
+    private final ParcelFileDescriptor fd;
+    private final Uri filePath;
+    private final long length;
+
+    private volatile String md5;
+    private volatile boolean duplicate;
+    private volatile boolean stopped;
+
+    /**
+     * @param client for lookup.
+     * @param uploadClient the one that upload goes through, to cancel it.
+     * @param url of UploadByHashServlet.
+     * @param fd to hash, reads are positional, so may be shared with the upload.
+     */
+    public DuplicateCheck(
+            @Nonnull OkHttpClient client,
+            @Nonnull OkHttpClient uploadClient,
+            @Nonnull String url,
+            @Nonnull ParcelFileDescriptor fd,
+            @Nonnull Uri filePath
+    ) {
+        this.client = client;
+        this.uploadClient = uploadClient;
+        this.url = url;
+        this.fd = fd;
+        this.filePath = filePath;
+        this.length = fd.getStatSize();
+    }
+
+    /** @param executor where to hash and look up, must not be the one upload waits for. */
+    public void start(Executor executor) {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // Service is shutting down, upload is being interrupted too.
+            logger.debug("Not checking {}: {}", filePath, e.toString());
+        }
+    }
+
+    /** Upload has finished first, no need to go on. */
+    public void stop() {
+        stopped = true;
+    }
+
+    /** @return Whether backend has the same content, and the upload was cancelled because of that. */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    @Override
+    public void run() {
+        try {
+            md5 = hash();
+            if (stopped) {
+                return;
+            }
+            Response response = client.newCall(newRequest().get().build()).execute();
+            response.body().close();
+            if (response.isSuccessful() && !stopped) {
+                logger.info("Backend already has {}, cancelling upload", filePath);
+                duplicate = true;
+                uploadClient.cancel(filePath);
+            }
+        } catch (IOException e) {
+            // Nothing bad, just upload it.
+            logger.debug("Cannot check {}: {}", filePath, e.getMessage());
+        }
+    }
+
+    /**
+     * Records upload of the existing content, call only if {@link #isDuplicate()}.
+     * @return Response as if the upload has happened.
+     */
+    public Response record(String contentType) throws IOException {
+        Request request = newRequest()
+                .header("X-Upload-Content-Type", contentType)
+                .header("X-Upload-File-Name", filePath.getLastPathSegment())
+                .post(RequestBody.create(MediaType.parse("text/plain"), ""))
+                .build();
+        return client.newCall(request).execute();
+    }
+
+    private Request.Builder newRequest() {
+        return new Request.Builder()
+                .url(url)
+                .header("X-Upload-Content-MD5", md5)
+                .header("X-Upload-Content-Length", String.valueOf(length));
+    }
+
+    private String hash() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        FileChannel channel = in.getChannel();
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            while (position < length) {
+                if (stopped) {
+                    throw new InterruptedIOException("Stopped");
+                }
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("File is shorter than " + length);
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
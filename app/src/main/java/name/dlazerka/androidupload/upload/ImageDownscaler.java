@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Downscales and recompresses an image before upload, to save bytes on the wire.
+ *
+ * Full-resolution bitmap is never held in memory: image is decoded with the biggest power-of-two
+ * inSampleSize that keeps it at least maxDimension, so decoded bitmap is at most twice as big
+ * as the result in each dimension, no matter how many megapixels the source has.
+ * Decoded bitmap and its scaled copy must fit into {@link #MAX_DECODE_BYTES} together: if they don't,
+ * it's decoded as RGB_565 (JPEG has no alpha anyway), and if even that doesn't fit, sampled down further.
+ * If memory still runs out, the original is uploaded.
+ *
+ * Result is written to cache dir under a name derived from source Uri, size and modification time,
+ * so that a redelivered upload finds the same bytes (and may resume), but a changed file or a reused
+ * content Uri doesn't. Caller deletes it once upload succeeds.
+ *
+ * @author Dzmitry Lazerka
+ */
+class ImageDownscaler {
+    private static final Logger logger = LoggerFactory.getLogger(ImageDownscaler.class);
+
+    static final String CONTENT_TYPE = "image/jpeg";
+    /** Peak memory of bitmaps while downscaling, to stay well within the smallest heaps. */
+    static final long MAX_DECODE_BYTES = 16 * 1024 * 1024;
+
+    private final Context context;
+    private final int maxDimension;
+    private final int quality;
+
+    /**
+     * @param maxDimension max width and height of the result.
+     * @param quality JPEG quality, 0-100.
+     */
+    public ImageDownscaler(@Nonnull Context context, int maxDimension, int quality) {
+        this.context = context;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+    }
+
+    private File getOutputFile(@Nonnull Uri source) throws IOException {
+        String identity = source + "\n" + getSize(source) + "\n" + getLastModified(source);
+        String name = Hashing.sha1().hashString(identity, Charsets.UTF_8).toString();
+        return new File(new File(context.getCacheDir(), "downscaled"), name + ".jpg");
+    }
+
+    /**
+     * @return Downscaled JPEG file, or null if source is already small enough, or isn't a decodable image.
+     */
+    @Nullable
+    public File downscale(@Nonnull Uri source) throws IOException {
+        File output = getOutputFile(source);
+        if (output.exists()) {
+            logger.info("Reusing downscaled {}", output);
+            return output;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            logger.warn("Cannot decode bounds of {}", source);
+            return null;
+        }
+        if (width <= maxDimension && height <= maxDimension) {
+            return null;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(Math.max(width, height));
+        while (getDecodeBytes(width, height, options.inSampleSize, 4) > MAX_DECODE_BYTES) {
+            if (getDecodeBytes(width, height, options.inSampleSize, 2) <= MAX_DECODE_BYTES) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                break;
+            }
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap sampled = null;
+        Bitmap scaled;
+        try {
+            sampled = decode(source, options);
+            if (sampled == null) {
+                logger.warn("Cannot decode {}", source);
+                return null;
+            }
+
+            float scale = maxDimension / (float) Math.max(sampled.getWidth(), sampled.getHeight());
+            scaled = sampled;
+            if (scale < 1) {
+                int scaledWidth = Math.max(1, Math.round(sampled.getWidth() * scale));
+                int scaledHeight = Math.max(1, Math.round(sampled.getHeight() * scale));
+                scaled = Bitmap.createScaledBitmap(sampled, scaledWidth, scaledHeight, true);
+                sampled.recycle();
+            }
+        } catch (OutOfMemoryError e) {
+            logger.warn("Not enough memory to downscale {} from {}x{}, uploading original", source, width, height);
+            if (sampled != null) {
+                sampled.recycle();
+            }
+            return null;
+        }
+
+        File dir = output.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // Write to temp file first, so that a killed process doesn't leave a truncated output.
+        File temp = new File(dir, output.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            scaled.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        } finally {
+            out.close();
+            scaled.recycle();
+        }
+        copyOrientation(source, temp);
+        if (!temp.renameTo(output)) {
+            throw new IOException("Cannot rename " + temp + " to " + output);
+        }
+
+        logger.info("Downscaled {} from {}x{} to {}, {} bytes", source, width, height, output, output.length());
+        return output;
+    }
+
+    /** @return Biggest power of two, such that sampled image is still not smaller than maxDimension. */
+    private int getSampleSize(int sourceDimension) {
+        int sampleSize = 1;
+        while (sourceDimension / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /** @return Bytes of bitmap decoded with given inSampleSize, plus of its copy scaled to maxDimension, if any. */
+    private long getDecodeBytes(int width, int height, int sampleSize, int bytesPerPixel) {
+        long sampledWidth = (width + sampleSize - 1) / sampleSize;
+        long sampledHeight = (height + sampleSize - 1) / sampleSize;
+        long pixels = sampledWidth * sampledHeight;
+        float scale = maxDimension / (float) Math.max(sampledWidth, sampledHeight);
+        if (scale < 1) {
+            pixels += Math.round(sampledWidth * scale) * Math.round(sampledHeight * scale);
+        }
+        return pixels * bytesPerPixel;
+    }
+
+    private long getSize(Uri source) throws IOException {
+        ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(source, "r");
+        if (fd == null) {
+            throw new IOException("Cannot open " + source);
+        }
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            return fd.getStatSize();
+        } finally {
+            fd.close();
+        }
+    }
+
+    /** @return Modification time, in whatever units the provider tells it, or -1 if it doesn't. */
+    private long getLastModified(Uri source) {
+        if (ContentResolver.SCHEME_FILE.equals(source.getScheme())) {
+            return new File(source.getPath()).lastModified();
+        }
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(source, null, null, null, null);
+        } catch (RuntimeException e) {
+            // Some providers don't support queries at all.
+            logger.warn("Cannot query {}: {}", source, e.getMessage());
+            return -1;
+        }
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            // Media has the former, documents have the latter.
+            for (String column : new String[]{MediaStore.MediaColumns.DATE_MODIFIED, "last_modified"}) {
+                int index = cursor.getColumnIndex(column);
+                if (index != -1 && !cursor.isNull(index)) {
+                    return cursor.getLong(index);
+                }
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Nullable
+    private Bitmap decode(Uri source, BitmapFactory.Options options) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new IOException("Cannot open " + source);
+        }
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Camera photos are often rotated by EXIF tag only, which BitmapFactory ignores. Keep it. */
+    private void copyOrientation(Uri source, File output) {
+        if (!ContentResolver.SCHEME_FILE.equals(source.getScheme())) {
+            // ExifInterface reads only files before API 24.
+            return;
+        }
+        try {
+            String orientation = new ExifInterface(source.getPath()).getAttribute(ExifInterface.TAG_ORIENTATION);
+            if (orientation != null) {
+                ExifInterface exif = new ExifInterface(output.getPath());
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION, orientation);
+                exif.saveAttributes();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot copy EXIF orientation of {}: {}", source, e.getMessage());
+        }
+    }
+}
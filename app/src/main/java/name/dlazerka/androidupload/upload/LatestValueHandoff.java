@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+
+/**
+ * Hands values over from a producer thread to a consumer running on a scheduler, keeping only the latest one.
+ *
+ * Producer (upload I/O thread) only does an atomic set, and schedules a drain if there's none pending,
+ * so it never waits for the consumer, and memory is bounded by one value. Consumer may be slow,
+ * values that came meanwhile are skipped, except the latest.
+ *
+ * {@link #post} runs an action on the same worker, after values given before it have been consumed,
+ * so that e.g. final status can't overtake the last progress.
+ *
+ * @author Dzmitry Lazerka
+ */
+class LatestValueHandoff<T> implements Action1<T> {
+    private final Scheduler.Worker worker;
+    private final Action1<? super T> consumer;
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final Action0 drain = new Action0() {
+        @Override
+        public void call() {
+            // Before taking the value, so that one coming right after it schedules another drain.
+            drainScheduled.set(false);
+            T value = latest.getAndSet(null);
+            if (value != null) {
+                consumer.call(value);
+            }
+        }
+    };
+
+    /**
+     * @param worker executes actions sequentially, in order of scheduling, as Rx workers do.
+     */
+    public LatestValueHandoff(@Nonnull Scheduler.Worker worker, @Nonnull Action1<? super T> consumer) {
+        this.worker = worker;
+        this.consumer = consumer;
+    }
+
+    /** Producer side, doesn't block. */
+    @Override
+    public void call(T value) {
+        latest.set(value);
+        if (drainScheduled.compareAndSet(false, true)) {
+            worker.schedule(drain);
+        }
+    }
+
+    /** Runs action on consumer's worker, after pending value is consumed. */
+    public void post(@Nonnull Action0 action) {
+        if (latest.get() != null) {
+            worker.schedule(drain);
+        }
+        worker.schedule(action);
+    }
+
+    /** Releases the worker, once what was given before is consumed. */
+    public void stop() {
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                worker.unsubscribe();
+            }
+        });
+    }
+}
@@ -20,7 +20,10 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.text.TextUtils;
+import android.view.Choreographer;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -28,9 +31,8 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.ChoiceFormat;
-import java.text.DecimalFormat;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 
@@ -38,7 +40,6 @@ import name.dlazerka.androidupload.R;
 import name.dlazerka.androidupload.ThanksActivity;
 import rx.Observable;
 import rx.Subscriber;
-import rx.android.schedulers.AndroidSchedulers;
 import rx.subjects.BehaviorSubject;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -58,15 +59,36 @@ public class UploadActivity extends Activity {
     public static final String EXTRA_FINISHED_INTENT = "finished_intent";
     /** Whether it should start service. Default: true.*/
     public static final String EXTRA_START_SERVICE = "start_service";
+    /** Whether to upload in resumable chunks. Default: false. */
+    public static final String EXTRA_RESUMABLE = "resumable";
+    /** How many connections to upload a single file over. Default: 1. */
+    public static final String EXTRA_PARALLEL_CONNECTIONS = "parallel_connections";
+    /** Whether to downscale images before upload. Default: false. */
+    public static final String EXTRA_DOWNSCALE_IMAGES = "downscale_images";
+    /** Whether to gzip compressible files, chunk by chunk. Default: false. */
+    public static final String EXTRA_GZIP = "gzip";
+    /**
+     * Set on the intent that notification opens, so that a tap after upload's status is gone
+     * doesn't start the upload again.
+     */
+    static final String EXTRA_FROM_NOTIFICATION = "from_notification";
 
-    private final UploadStatusObserver statusObserver = new UploadStatusObserver();
+    /** New one every onStart(), as an unsubscribed Subscriber can't be subscribed again. */
+    private UploadStatusObserver statusObserver;
 
     private ProgressBar progressBar;
     private TextView progressPercent;
     private TextView uploadRate;
+    /** What progressPercent shows, to not format the same text again. -1 if not a percent. */
+    private int renderedPercent = -1;
+    /** Opened from notification of an upload that isn't pending, but whose status was evicted. */
+    private boolean statusLost;
+    /** Opened from notification, and journal is being read to tell whether upload is still pending. */
+    private boolean checkingJournal;
+    /** Between onStart() and onStop(). */
+    private boolean started;
 
-    private ChoiceFormat choiceFormat;
-    private DecimalFormat rateNumberFormat;
+    private UploadProgressFormat progressFormat;
 
     /**
      * Creates intent to launch this activity.
@@ -101,8 +123,7 @@ public class UploadActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_upload);
 
-        choiceFormat = new ChoiceFormat(getString(R.string.rate_choice));
-        rateNumberFormat = new DecimalFormat(getString(R.string.rate_number_format));
+        progressFormat = new UploadProgressFormat(this);
 
         progressBar = (ProgressBar) findViewById(R.id.progress_bar);
         progressPercent = (TextView) findViewById(R.id.progress_percent);
@@ -112,8 +133,28 @@ public class UploadActivity extends Activity {
 
         setTitle(getString(R.string.uploading_s, filePath.getLastPathSegment()));
 
-        // First-time start.
-        if (UploadStatusObservables.getObservable(filePath) == null && savedInstanceState == null) {
+        boolean fromNotification = getIntent().getBooleanExtra(EXTRA_FROM_NOTIFICATION, false);
+        if (UploadStatusObservables.getObservable(filePath) == null && savedInstanceState == null
+                && fromNotification) {
+            // Likely a cold start, then it's us to read the journal first, not on main thread.
+            progressBar.setIndeterminate(true);
+            checkingJournal = true;
+            final Context context = getApplicationContext();
+            final Uri path = filePath;
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean pending = UploadJournal.get(context).get(path) != null;
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onJournalChecked(pending);
+                        }
+                    });
+                }
+            });
+        } else if (UploadStatusObservables.getObservable(filePath) == null && savedInstanceState == null) {
+            // First-time start.
             logger.info("Uploading {}", filePath);
 
             progressBar.setIndeterminate(true);
@@ -124,39 +165,92 @@ public class UploadActivity extends Activity {
             if (extras.getBoolean(EXTRA_START_SERVICE, true)) {
                 String contentType = checkNotNull(extras.getString(EXTRA_CONTENT_TYPE),
                         EXTRA_CONTENT_TYPE + " extra is null");
-                Intent finishedIntent = checkNotNull((Intent) extras.getParcelable(EXTRA_FINISHED_INTENT));
+                Intent finishedIntent = extras.getParcelable(EXTRA_FINISHED_INTENT);
+                if (finishedIntent == null) {
+                    // Notification intent restored from UploadJournal, which keeps no Parcelable extras.
+                    finishedIntent = ThanksActivity.createIntent(this);
+                }
 
+                Intent progressIntent = new Intent(getIntent()).putExtra(EXTRA_FROM_NOTIFICATION, true);
                 Intent serviceIntent =
-                        UploadService.createMyIntent(this, filePath, contentType, getIntent(), finishedIntent);
-                startService(serviceIntent);
+                        UploadService.createMyIntent(this, filePath, contentType, progressIntent, finishedIntent);
+                serviceIntent.putExtra(UploadService.EXTRA_RESUMABLE, extras.getBoolean(EXTRA_RESUMABLE, false));
+                serviceIntent.putExtra(UploadService.EXTRA_PARALLEL_CONNECTIONS,
+                        extras.getInt(EXTRA_PARALLEL_CONNECTIONS, 1));
+                serviceIntent.putExtra(UploadService.EXTRA_DOWNSCALE_IMAGES,
+                        extras.getBoolean(EXTRA_DOWNSCALE_IMAGES, false));
+                serviceIntent.putExtra(UploadService.EXTRA_GZIP, extras.getBoolean(EXTRA_GZIP, false));
+                schedule(serviceIntent);
             }
         } else {
             logger.info("There's already upload of the same file in progress: {}", filePath);
         }
     }
 
+    /** Scheduler reads the journal and sizes of pending files, so that's not on main thread. */
+    private void schedule(final Intent serviceIntent) {
+        final Context context = getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                new UploadScheduler(context).schedule(serviceIntent);
+            }
+        });
+    }
+
+    private void onJournalChecked(boolean pending) {
+        checkingJournal = false;
+        Uri filePath = getFilePath();
+        if (pending) {
+            // Waits for its retry, service will publish here once it runs it.
+            logger.info("Waiting for {}", filePath);
+            UploadStatusObservables.createSubject(filePath);
+            if (started) {
+                subscribe();
+            }
+        } else {
+            // Status was evicted, or process has died since. Upload is over, but there's no telling how it went.
+            logger.info("Status of {} is gone", filePath);
+            statusLost = true;
+            progressBar.setIndeterminate(false);
+            progressPercent.setText(getString(R.string.upload_status_lost));
+        }
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
+        started = true;
+        if (checkingJournal) {
+            // Subscribes once checked.
+            return;
+        }
+        subscribe();
+    }
 
+    private void subscribe() {
         Uri filePath = getFilePath();
 
         Observable<UploadStatus> uploadStatusObservable = UploadStatusObservables.getObservable(filePath);
         if (uploadStatusObservable == null) {
+            if (statusLost) {
+                return;
+            }
             // Upload have finished.
             onUploadSuccess();
         } else {
-            uploadStatusObservable
-                    // Upload progress events come in big chunks, throttle them a little.
-                    .debounce(50, TimeUnit.MILLISECONDS)
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(statusObserver);
+            statusObserver = new UploadStatusObserver();
+            uploadStatusObservable.subscribe(statusObserver);
         }
     }
 
     @Override
     protected void onStop() {
-        statusObserver.unsubscribe();
+        started = false;
+        if (statusObserver != null) {
+            statusObserver.stop();
+            statusObserver = null;
+        }
         super.onStop();
     }
 
@@ -179,44 +273,68 @@ public class UploadActivity extends Activity {
         Toast.makeText(UploadActivity.this, text, Toast.LENGTH_LONG)
                 .show();
 
+        renderedPercent = -1;
         progressPercent.setText(getString(R.string.error));
         uploadRate.setText(null);
 
         // Leave user staring at error message. Let them press Back once they get it.
     }
 
+    /**
+     * Touches only views whose content has changed, as setText() requests layout even for the same text.
+     * ProgressBar checks that by itself.
+     */
     private void onUploadProgress(UploadProgress progress) {
         float fraction = progress.getFraction();
         int percent = Math.round(fraction * 100);
 
         if (percent >= 100) {
-            progressPercent.setText(getString(R.string.uploading));
+            if (renderedPercent != 100) {
+                renderedPercent = 100;
+                progressPercent.setText(getString(R.string.uploading));
+            }
             progressBar.setIndeterminate(true);
         } else {
-            String humanReadablePerSecond = getHumanReadablePerSecond(progress.getBytesPerSecond());
             progressBar.setIndeterminate(false);
-            progressPercent.setText(getString(R.string.percent, percent));
-            uploadRate.setText(humanReadablePerSecond);
+            if (percent != renderedPercent) {
+                renderedPercent = percent;
+                progressPercent.setText(getString(R.string.percent, percent));
+            }
+            String rate = progressFormat.format(progress);
+            if (!TextUtils.equals(rate, uploadRate.getText())) {
+                uploadRate.setText(rate);
+            }
             progressBar.setProgress(percent);
         }
     }
 
-    private String getHumanReadablePerSecond(float bytesPerSecond) {
-        // Example: "%s MB/s"
-        String format1 = choiceFormat.format(Math.round(bytesPerSecond));
-
-        if (bytesPerSecond >= 1000_000) {
-            bytesPerSecond /= 1000_000;
-        } else if (bytesPerSecond >= 1000) {
-            bytesPerSecond /= 1000;
+    /**
+     * Renders status once per display frame, instead of once per event.
+     *
+     * Events come from upload threads, and only the latest one is kept, so however many of them come
+     * during a frame, main thread renders only one, and no frame is requested when there are none.
+     * Final status (response or error) is the latest by definition, so it's never skipped.
+     */
+    private class UploadStatusObserver extends Subscriber<UploadStatus> implements Choreographer.FrameCallback {
+        /** Of the main thread, as created in onStart(). */
+        private final Choreographer choreographer = Choreographer.getInstance();
+        /** Latest status that wasn't rendered yet, or null. */
+        private final AtomicReference<UploadStatus> latest = new AtomicReference<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final AtomicBoolean frameRequested = new AtomicBoolean();
+        /**
+         * Not isUnsubscribed(), because Rx unsubscribes right after onError(), and it still has to be rendered.
+         * Main thread only.
+         */
+        private boolean stopped;
+
+        /** On main thread. */
+        void stop() {
+            stopped = true;
+            unsubscribe();
+            choreographer.removeFrameCallback(this);
         }
-        // Example: "12.3"
-        String number = rateNumberFormat.format(bytesPerSecond);
 
-        return String.format(format1, number);
-    }
-
-    private class UploadStatusObserver extends Subscriber<UploadStatus> {
         @Override
         public void onCompleted() {
             // See onNext() instead.
@@ -225,21 +343,51 @@ public class UploadActivity extends Activity {
 
         @Override
         public void onError(Throwable e) {
-            logger.warn("onError {}", e.getMessage());
-            onUploadFailure(0, e.getMessage());
+            error.set(e);
+            requestFrame();
         }
 
         @Override
         public void onNext(UploadStatus status) {
+            latest.set(status);
+            requestFrame();
+        }
+
+        private void requestFrame() {
+            if (frameRequested.compareAndSet(false, true)) {
+                choreographer.postFrameCallback(this);
+            }
+        }
+
+        /** On main thread. */
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Before taking the status, so that one coming right after it requests the next frame.
+            frameRequested.set(false);
+            if (stopped) {
+                return;
+            }
+
+            UploadStatus status = latest.getAndSet(null);
+            if (status != null) {
+                render(status);
+            }
+
+            Throwable e = error.getAndSet(null);
+            if (e != null) {
+                logger.warn("onError {}", e.getMessage());
+                onUploadFailure(0, e.getMessage());
+            }
+        }
+
+        private void render(UploadStatus status) {
             if (status.progress != null) {
                 onUploadProgress(status.progress);
             }
-            else if (status.response != null) {
-                if (status.response.isSuccessful()) {
-                    onUploadSuccess();
-                } else {
-                    onUploadFailure(status.response.code(), status.response.message());
-                }
+            else if (status.isSuccessful()) {
+                onUploadSuccess();
+            } else {
+                onUploadFailure(status.code, status.message);
             }
         }
     }
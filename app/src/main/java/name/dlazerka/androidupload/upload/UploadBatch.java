@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import com.squareup.okhttp.MultipartBuilder;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import name.dlazerka.androidupload.Application;
+
+/**
+ * Uploads several small files in one multipart request: one upload URL, one POST, and one Blobstore callback,
+ * that saves them all as one Upload.
+ *
+ * Each file still has its own progress, status and notification, as if uploaded by its {@link UploadTask}.
+ * All of them get the same response, and are retried together if it fails.
+ * Files are batched once prepared (e.g. downscaled), see {@link UploadTask#isBatchable()}, and they aren't checked
+ * for duplicates, as for small files that's about as expensive as uploading them.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadBatch implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadBatch.class);
+
+    private final Context context;
+    private final OkHttpClient uploadClient;
+    private final List<UploadTask> tasks;
+
+    public UploadBatch(@Nonnull Context context, @Nonnull OkHttpClient uploadClient, @Nonnull List<UploadTask> tasks) {
+        this.context = context;
+        this.uploadClient = uploadClient;
+        this.tasks = tasks;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Uploading {} files in one request", tasks.size());
+
+        List<UploadTask> started = new ArrayList<>(tasks.size());
+        List<ParcelFileDescriptor> fds = new ArrayList<>(tasks.size());
+        try {
+            MultipartBuilder multipartBuilder = new MultipartBuilder();
+            for (UploadTask task : tasks) {
+                task.begin();
+                started.add(task);
+                ParcelFileDescriptor fd;
+                try {
+                    fd = task.open();
+                } catch (IOException e) {
+                    // Just this one, others may go on.
+                    started.remove(task);
+                    task.fail(e);
+                    task.end();
+                    continue;
+                }
+                if (fd == null) {
+                    // Given up already.
+                    started.remove(task);
+                    task.end();
+                    continue;
+                }
+                fds.add(fd);
+
+                UploadProgressSampler progress = task.newProgressSampler(fd.getStatSize());
+                UploadListeningBody body = new UploadListeningBody(fd, task.getContentType(), progress);
+                multipartBuilder.addFormDataPart(Application.UPLOAD_FORM_PARAM, task.getFileName(), body);
+            }
+            if (started.isEmpty()) {
+                return;
+            }
+
+            long takingUrlAt = SystemClock.uptimeMillis();
+            String uploadUrl = UploadUrlPool.get(context).take();
+            for (UploadTask task : started) {
+                task.getMetrics().urlFetched(takingUrlAt);
+            }
+
+            Request request = new Request.Builder()
+                    .url(uploadUrl)
+                    .post(multipartBuilder.build())
+                    .build();
+            Response response = uploadClient.newCall(request).execute();
+
+            for (UploadTask task : started) {
+                task.getMetrics().responseReceived();
+                task.finish(response);
+            }
+            // Statuses keep just the status line, let connection go back to pool.
+            response.body().close();
+        } catch (IOException e) {
+            for (UploadTask task : started) {
+                task.fail(e);
+            }
+        } finally {
+            for (ParcelFileDescriptor fd : fds) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    logger.warn("Cannot close", e);
+                }
+            }
+            for (UploadTask task : started) {
+                task.end();
+            }
+        }
+    }
+}
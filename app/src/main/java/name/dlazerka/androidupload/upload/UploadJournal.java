@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Looper;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_FINISHED_INTENT;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_PROGRESS_INTENT;
+
+/**
+ * Pending and in-flight uploads, persisted so that they survive process death.
+ *
+ * File is append-only: every change is a small record
+ * (add, upload URL, offset, attempt, size, next attempt, remove),
+ * so updating progress doesn't rewrite anything. On open, all records are replayed sequentially
+ * into memory, which is fast even for thousands of entries. When the file has grown much bigger than
+ * what's live in it, it's compacted: live entries are written to a temp file, which replaces the journal.
+ * That's checked on every record, as progress of a single large upload adds many.
+ *
+ * A truncated last record (process killed mid-write) is ignored.
+ *
+ * Thread-safe, used both by UploadService and by its upload threads. First {@link #get} reads the whole file,
+ * so it must not be called on main thread.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadJournal {
+    private static final Logger logger = LoggerFactory.getLogger(UploadJournal.class);
+
+    private static final String FILE_NAME = "upload-journal";
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_UPLOAD_URL = 2;
+    private static final byte OP_OFFSET = 3;
+    private static final byte OP_ATTEMPT = 4;
+    private static final byte OP_REMOVE = 5;
+    private static final byte OP_SIZE = 6;
+    private static final byte OP_NEXT_ATTEMPT = 7;
+
+    /** Compact when there are more records than this many per live entry. */
+    private static final int COMPACTION_RATIO = 4;
+    /** Don't bother compacting small files. */
+    private static final int COMPACTION_MIN_RECORDS = 256;
+
+    private static UploadJournal instance;
+
+    private final File file;
+    /** Guarded by this. Insertion-ordered, so that replay keeps the queue order. */
+    private final Map<Uri, Entry> entries = new LinkedHashMap<>();
+    /** Guarded by this. */
+    private DataOutputStream out;
+    /** Guarded by this. Number of records in file. */
+    private int records;
+
+    static class Entry {
+        final Uri filePath;
+        final String contentType;
+        /**
+         * Service intent without Parcelable extras, see {@link Intent#toUri}. Progress and finished intents
+         * are kept separately, but their own Parcelable extras are lost too.
+         */
+        final String intentUri;
+        final String progressIntentUri;
+        final String finishedIntentUri;
+
+        /** Where to continue upload, e.g. chunked upload session URL. Null if nowhere. */
+        String uploadUrl;
+        /** Bytes acknowledged by server. */
+        long offset;
+        int attempts;
+        /** Of the file, -1 until known. */
+        long size = -1;
+        /** Wall clock time when it may be retried, 0 if right away. Wall clock, as it must survive reboot. */
+        long nextAttemptAt;
+
+        Entry(Uri filePath, String contentType, String intentUri, String progressIntentUri, String finishedIntentUri) {
+            this.filePath = filePath;
+            this.contentType = contentType;
+            this.intentUri = intentUri;
+            this.progressIntentUri = progressIntentUri;
+            this.finishedIntentUri = finishedIntentUri;
+        }
+
+        /** @return Intent to restart this upload with, or null if journal record is unreadable. */
+        @Nullable
+        Intent toIntent() {
+            try {
+                Intent intent = Intent.parseUri(intentUri, 0);
+                intent.putExtra(EXTRA_PROGRESS_INTENT, Intent.parseUri(progressIntentUri, 0));
+                intent.putExtra(EXTRA_FINISHED_INTENT, Intent.parseUri(finishedIntentUri, 0));
+                return intent;
+            } catch (URISyntaxException e) {
+                logger.error("Cannot parse intent of {}", filePath, e);
+                return null;
+            }
+        }
+    }
+
+    /** Replays the file on first call, so that one must not be on main thread. */
+    @Nonnull
+    public static synchronized UploadJournal get(@Nonnull Context context) {
+        if (instance == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                logger.warn("Replaying journal on main thread");
+            }
+            instance = new UploadJournal(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    /** Use {@link #get}, there must be only one instance per file. */
+    @VisibleForTesting
+    UploadJournal(File file) {
+        this.file = file;
+        replay();
+    }
+
+    /** @return Entries that haven't been removed yet, in order they were added. */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<>(entries.values());
+    }
+
+    @Nullable
+    public synchronized Entry get(@Nonnull Uri filePath) {
+        return entries.get(filePath);
+    }
+
+    /** Adds upload requested by given service intent, unless it's already there. */
+    public synchronized void add(@Nonnull Intent intent) {
+        Uri filePath = intent.getData();
+        if (entries.containsKey(filePath)) {
+            return;
+        }
+        Intent progressIntent = intent.getParcelableExtra(EXTRA_PROGRESS_INTENT);
+        Intent finishedIntent = intent.getParcelableExtra(EXTRA_FINISHED_INTENT);
+        Entry entry = new Entry(
+                filePath,
+                intent.getStringExtra(UploadService.EXTRA_CONTENT_TYPE),
+                intent.toUri(0),
+                progressIntent.toUri(0),
+                finishedIntent.toUri(0));
+        entries.put(filePath, entry);
+        try {
+            DataOutputStream out = beginRecord(OP_ADD, filePath);
+            out.writeUTF(entry.contentType);
+            out.writeUTF(entry.intentUri);
+            out.writeUTF(entry.progressIntentUri);
+            out.writeUTF(entry.finishedIntentUri);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    /** @param uploadUrl null to forget it. */
+    public synchronized void setUploadUrl(@Nonnull Uri filePath, @Nullable String uploadUrl) {
+        Entry entry = entries.get(filePath);
+        if (entry == null) {
+            return;
+        }
+        entry.uploadUrl = uploadUrl;
+        try {
+            beginRecord(OP_UPLOAD_URL, filePath).writeUTF(uploadUrl == null ? "" : uploadUrl);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    public synchronized void setOffset(@Nonnull Uri filePath, long offset) {
+        Entry entry = entries.get(filePath);
+        if (entry == null) {
+            return;
+        }
+        entry.offset = offset;
+        try {
+            beginRecord(OP_OFFSET, filePath).writeLong(offset);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    /** @return Number of attempts including this one. */
+    public synchronized int recordAttempt(@Nonnull Uri filePath) {
+        Entry entry = entries.get(filePath);
+        if (entry == null) {
+            return 0;
+        }
+        entry.attempts++;
+        try {
+            beginRecord(OP_ATTEMPT, filePath).writeInt(entry.attempts);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+        return entry.attempts;
+    }
+
+    public synchronized void setSize(@Nonnull Uri filePath, long size) {
+        Entry entry = entries.get(filePath);
+        if (entry == null) {
+            return;
+        }
+        entry.size = size;
+        try {
+            beginRecord(OP_SIZE, filePath).writeLong(size);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    public synchronized void setNextAttemptAt(@Nonnull Uri filePath, long nextAttemptAt) {
+        Entry entry = entries.get(filePath);
+        if (entry == null) {
+            return;
+        }
+        entry.nextAttemptAt = nextAttemptAt;
+        try {
+            beginRecord(OP_NEXT_ATTEMPT, filePath).writeLong(nextAttemptAt);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    /** Upload has finished, successfully or not, and must not be retried. */
+    public synchronized void remove(@Nonnull Uri filePath) {
+        if (entries.remove(filePath) == null) {
+            return;
+        }
+        try {
+            beginRecord(OP_REMOVE, filePath);
+            endRecord();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    private DataOutputStream beginRecord(byte op, Uri filePath) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        out.writeByte(op);
+        out.writeUTF(filePath.toString());
+        return out;
+    }
+
+    /**
+     * Flushes to OS, but doesn't fsync: losing the last few records on power loss is fine,
+     * they'll be re-done, while fsync on every progress record would be too slow.
+     * Compacts if the file has grown too big.
+     */
+    private void endRecord() throws IOException {
+        out.flush();
+        records++;
+        if (records > COMPACTION_MIN_RECORDS && records > Math.max(entries.size(), 1) * COMPACTION_RATIO) {
+            compact();
+        }
+    }
+
+    private void onWriteError(IOException e) {
+        logger.error("Cannot write to {}", file, e);
+        closeQuietly();
+    }
+
+    private void replay() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            //noinspection InfiniteLoopStatement, ends by EOFException
+            while (true) {
+                byte op = in.readByte();
+                Uri filePath = Uri.parse(in.readUTF());
+                Entry entry = entries.get(filePath);
+                switch (op) {
+                    case OP_ADD:
+                        entries.put(filePath, new Entry(
+                                filePath, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()));
+                        break;
+                    case OP_UPLOAD_URL:
+                        String uploadUrl = in.readUTF();
+                        if (entry != null) {
+                            entry.uploadUrl = uploadUrl.isEmpty() ? null : uploadUrl;
+                        }
+                        break;
+                    case OP_OFFSET:
+                        long offset = in.readLong();
+                        if (entry != null) {
+                            entry.offset = offset;
+                        }
+                        break;
+                    case OP_ATTEMPT:
+                        int attempts = in.readInt();
+                        if (entry != null) {
+                            entry.attempts = attempts;
+                        }
+                        break;
+                    case OP_SIZE:
+                        long size = in.readLong();
+                        if (entry != null) {
+                            entry.size = size;
+                        }
+                        break;
+                    case OP_NEXT_ATTEMPT:
+                        long nextAttemptAt = in.readLong();
+                        if (entry != null) {
+                            entry.nextAttemptAt = nextAttemptAt;
+                        }
+                        break;
+                    case OP_REMOVE:
+                        entries.remove(filePath);
+                        break;
+                    default:
+                        throw new IOException("Unknown op " + op);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // Either clean end, or truncated last record.
+        } catch (IOException e) {
+            logger.error("Journal {} is corrupted after {} records, dropping the rest", file, records, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close {}", file, e);
+            }
+        }
+        logger.info("Replayed {} records, {} pending uploads", records, entries.size());
+
+        // Also gets rid of a truncated or corrupted tail, which would break further appends.
+        compact();
+    }
+
+    private void compact() {
+        closeQuietly();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream tempFileOut = new FileOutputStream(temp);
+            DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(tempFileOut));
+            int written = 0;
+            //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+            try {
+                for (Entry entry : entries.values()) {
+                    written += writeEntry(tempOut, entry);
+                }
+                tempOut.flush();
+                // Otherwise on power loss rename may be durable while data isn't, leaving an empty journal.
+                tempFileOut.getFD().sync();
+            } finally {
+                tempOut.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+            records = written;
+        } catch (IOException e) {
+            logger.error("Cannot compact {}", file, e);
+        }
+    }
+
+    /** @return Number of records written. */
+    private static int writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        int records = 1;
+        String filePath = entry.filePath.toString();
+        out.writeByte(OP_ADD);
+        out.writeUTF(filePath);
+        out.writeUTF(entry.contentType);
+        out.writeUTF(entry.intentUri);
+        out.writeUTF(entry.progressIntentUri);
+        out.writeUTF(entry.finishedIntentUri);
+        if (entry.uploadUrl != null) {
+            out.writeByte(OP_UPLOAD_URL);
+            out.writeUTF(filePath);
+            out.writeUTF(entry.uploadUrl);
+            records++;
+        }
+        if (entry.offset != 0) {
+            out.writeByte(OP_OFFSET);
+            out.writeUTF(filePath);
+            out.writeLong(entry.offset);
+            records++;
+        }
+        if (entry.attempts != 0) {
+            out.writeByte(OP_ATTEMPT);
+            out.writeUTF(filePath);
+            out.writeInt(entry.attempts);
+            records++;
+        }
+        if (entry.size != -1) {
+            out.writeByte(OP_SIZE);
+            out.writeUTF(filePath);
+            out.writeLong(entry.size);
+            records++;
+        }
+        if (entry.nextAttemptAt != 0) {
+            out.writeByte(OP_NEXT_ATTEMPT);
+            out.writeUTF(filePath);
+            out.writeLong(entry.nextAttemptAt);
+            records++;
+        }
+        return records;
+    }
+
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close {}", file, e);
+        }
+        out = null;
+    }
+}
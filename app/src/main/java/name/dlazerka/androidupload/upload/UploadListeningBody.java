@@ -22,39 +22,101 @@ import android.os.SystemClock;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.RequestBody;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
 
 import okio.BufferedSink;
-import okio.Okio;
-import okio.Source;
-import rx.Observable;
-import rx.subjects.PublishSubject;
 
 /**
- * Extends regular RequestBOdy by notifying listener of UploadProgress.
+ * Extends regular RequestBOdy by counting transferred bytes in {@link UploadProgressSampler}.
+ *
+ * File is read in transfers of adaptive size: small ones on slow links, so that progress is still smooth,
+ * and big ones on fast links, so that we don't spend CPU on per-transfer overhead.
+ * Sink is flushed only once in the end: writes to BufferedSink emit complete segments to socket anyway,
+ * so progress is accurate within one segment without flushing.
+ *
+ * Optionally gzips the file, see {@link #isCompressible}. Compressed body is buffered in memory, so that it has
+ * Content-Length: Blobstore and App Engine front-ends don't reliably take chunked transfer encoding.
+ * So use it for chunks of {@link ChunkedUploader}, not whole files. Progress is still counted in source bytes.
  *
  * @author Dzmitry Lazerka
  */
 class UploadListeningBody extends RequestBody {
-    private static final int SEGMENT_SIZE = 2048; // okio.Segment.SIZE
+    private static final int MIN_TRANSFER_SIZE = 8192; // okio.Segment.SIZE
+    private static final int MAX_TRANSFER_SIZE = 256 * 1024;
+    /** Transfer size grows while transfers take less than this, and shrinks otherwise. */
+    private static final long TARGET_TRANSFER_MS = 50;
 
     private final ParcelFileDescriptor fd;
     private final MediaType contentType;
-    private final PublishSubject<UploadProgress> progressSubject;
+    private final long offset;
+    /** -1 means till the end of file. */
+    private final long length;
+    private final boolean gzip;
+    private final UploadProgressSampler progress;
+
+    /** How many bytes we've reported to progress, so that we can take them back if OkHttp retries. */
+    private long reported;
+    /** Null until compressed, then kept for retries. */
+    private byte[] compressed;
+
+    /**
+     * @param fd opened file descriptor. It's caller responsibility to close it.
+     * @param progress where to count transferred bytes.
+     */
+    public UploadListeningBody(
+            ParcelFileDescriptor fd,
+            String contentType,
+            UploadProgressSampler progress
+    ) {
+        this(fd, contentType, 0, -1, false, progress);
+    }
 
     /**
+     * Body of only a part of the file, e.g. a chunk of resumable upload.
+     *
      * @param fd opened file descriptor. It's caller responsibility to close it.
+     * @param gzip whether to compress, caller must set Content-Encoding accordingly. Part is buffered then.
+     * @param progress where to count transferred bytes, may be shared with other parts of the same file.
      */
-    public UploadListeningBody(ParcelFileDescriptor fd, String contentType) {
+    public UploadListeningBody(
+            ParcelFileDescriptor fd,
+            String contentType,
+            long offset,
+            long length,
+            boolean gzip,
+            UploadProgressSampler progress
+    ) {
         this.fd = fd;
         this.contentType = MediaType.parse(contentType);
-        this.progressSubject = PublishSubject.create();
+        this.offset = offset;
+        this.length = length;
+        this.gzip = gzip;
+        this.progress = progress;
     }
 
-    /** Returns an observable that you can subscribe to to get updates. */
-    public Observable<UploadProgress> getProgressObservable() {
-        return progressSubject;
+    /** Whether it's worth to gzip files of this type: text, JSON, XML, CSV, logs. */
+    public static boolean isCompressible(String contentType) {
+        MediaType mediaType = MediaType.parse(contentType);
+        if (mediaType == null) {
+            return false;
+        }
+        String type = mediaType.type();
+        String subtype = mediaType.subtype();
+        return type.equals("text")
+                || subtype.equals("json")
+                || subtype.endsWith("+json")
+                || subtype.equals("xml")
+                || subtype.endsWith("+xml")
+                || subtype.equals("javascript")
+                || subtype.equals("x-ndjson");
     }
 
     @Override
@@ -64,33 +126,122 @@ class UploadListeningBody extends RequestBody {
 
     @Override
     public void writeTo(BufferedSink sink) throws IOException {
-        Source source = Okio.source(new FileInputStream(fd.getFileDescriptor()));
+        if (reported != 0) {
+            progress.add(-reported);
+            reported = 0;
+        }
+        if (gzip) {
+            writeCompressed(sink);
+            return;
+        }
+
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        // Positional reads, because descriptor position is shared with other parts uploaded in parallel,
+        // and may be anywhere after a previous attempt anyway.
+        FileChannel channel = in.getChannel();
         //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
         try {
             long transferred = 0;
-            long length = fd.getStatSize();
-            long startedAt = SystemClock.uptimeMillis();
+            long length = sourceLength();
 
-            long read;
-            while ((read = source.read(sink.buffer(), SEGMENT_SIZE)) != -1) {
+            byte[] bytes = new byte[(int) Math.min(MAX_TRANSFER_SIZE, Math.max(length, 1))];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int transferSize = Math.min(MIN_TRANSFER_SIZE, bytes.length);
+            while (transferred < length) {
+                long transferStartedAt = SystemClock.uptimeMillis();
+
+                buffer.clear();
+                buffer.limit((int) Math.min(transferSize, length - transferred));
+                int read = channel.read(buffer, offset + transferred);
+                if (read == -1) {
+                    throw new EOFException("File is shorter than " + (offset + length));
+                }
+                sink.write(bytes, 0, read);
                 transferred += read;
-                sink.flush(); // important
 
-                progressSubject.onNext(new UploadProgress(transferred, length, startedAt));
+                progress.add(read);
+                reported += read;
+
+                transferSize = adaptTransferSize(transferSize, transferStartedAt, bytes.length);
             }
-            sink.writeAll(source);
             sink.flush();
-            progressSubject.onCompleted();
-        } catch (Exception e) {
-            progressSubject.onError(e);
-            throw e;
         } finally {
-            source.close();
+            in.close();
+        }
+    }
+
+    /** Sends buffered compressed bytes, counting progress in source bytes, proportionally. */
+    private void writeCompressed(BufferedSink sink) throws IOException {
+        byte[] body = compress();
+        long length = sourceLength();
+        int written = 0;
+        int transferSize = Math.min(MIN_TRANSFER_SIZE, body.length);
+        while (written < body.length) {
+            long transferStartedAt = SystemClock.uptimeMillis();
+
+            int size = Math.min(transferSize, body.length - written);
+            sink.write(body, written, size);
+            written += size;
+
+            long sourceWritten = length * written / body.length;
+            progress.add(sourceWritten - reported);
+            reported = sourceWritten;
+
+            transferSize = adaptTransferSize(transferSize, transferStartedAt, MAX_TRANSFER_SIZE);
+        }
+        sink.flush();
+    }
+
+    private static int adaptTransferSize(int transferSize, long transferStartedAt, int max) {
+        long transferMs = SystemClock.uptimeMillis() - transferStartedAt;
+        if (transferMs < TARGET_TRANSFER_MS) {
+            return Math.min(transferSize * 2, max);
+        } else if (transferMs > TARGET_TRANSFER_MS * 2) {
+            return Math.max(transferSize / 2, Math.min(MIN_TRANSFER_SIZE, max));
+        }
+        return transferSize;
+    }
+
+    /** @return Compressed part, compressing it on first call. */
+    private byte[] compress() throws IOException {
+        if (compressed != null) {
+            return compressed;
+        }
+        long length = sourceLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, MAX_TRANSFER_SIZE));
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        FileChannel channel = in.getChannel();
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out, MIN_TRANSFER_SIZE);
+            byte[] bytes = new byte[(int) Math.min(MAX_TRANSFER_SIZE, Math.max(length, 1))];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long read = 0;
+            while (read < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(bytes.length, length - read));
+                int n = channel.read(buffer, offset + read);
+                if (n == -1) {
+                    throw new EOFException("File is shorter than " + (offset + length));
+                }
+                gzipOut.write(bytes, 0, n);
+                read += n;
+            }
+            // Writes trailer and releases native Deflater.
+            gzipOut.close();
+        } finally {
+            in.close();
         }
+        compressed = out.toByteArray();
+        return compressed;
     }
 
     @Override
     public long contentLength() throws IOException {
-        return fd.getStatSize();
+        return gzip ? compress().length : sourceLength();
+    }
+
+    private long sourceLength() {
+        return length == -1 ? fd.getStatSize() - offset : length;
     }
 }
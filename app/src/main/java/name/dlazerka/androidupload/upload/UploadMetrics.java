@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Trace of one upload attempt, published by {@link UploadMetricsStore} when the attempt is over.
+ *
+ * All durations are milliseconds since the attempt has started, or -1 if the stage wasn't reached.
+ * Time to first byte includes getting the URL, connect and TLS handshake; server time is from the last byte
+ * sent to response headers received, i.e. mostly Blobstore and our callback.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class UploadMetrics {
+    private final Uri filePath;
+    private final long startedAt;
+    private final int attempt;
+    private final boolean chunked;
+    private final long urlFetchMs;
+    private final long firstByteMs;
+    private final long lastByteMs;
+    private final long responseMs;
+    private final long totalMs;
+    private final long bytes;
+    private final int statusCode;
+    private final String error;
+    private final boolean duplicate;
+    private final long[] rateAtMs;
+    private final float[] bytesPerSecond;
+
+    private UploadMetrics(Builder builder, long totalMs, int statusCode, String error) {
+        this.filePath = builder.filePath;
+        this.startedAt = builder.startedAt;
+        this.attempt = builder.attempt;
+        this.chunked = builder.chunked;
+        this.urlFetchMs = builder.urlFetchMs;
+        this.firstByteMs = builder.sinceStart(builder.sampler == null ? -1 : builder.sampler.getFirstByteAt());
+        this.lastByteMs = builder.sinceStart(builder.sampler == null ? -1 : builder.sampler.getLastByteAt());
+        this.responseMs = builder.responseMs;
+        this.totalMs = totalMs;
+        this.bytes = builder.bytes;
+        this.statusCode = statusCode;
+        this.error = error;
+        this.duplicate = builder.duplicate;
+        this.rateAtMs = Arrays.copyOf(builder.rateAtMs, builder.rateSamples);
+        this.bytesPerSecond = Arrays.copyOf(builder.bytesPerSecond, builder.rateSamples);
+    }
+
+    @Nonnull
+    public Uri getFilePath() {
+        return filePath;
+    }
+
+    /** @return Wall clock time the attempt has started at. */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /** @return 1 for the first attempt, so retries are one less. */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /** @return Time spent getting upload URL, mostly zero when it's pooled. Chunked uploads don't need one. */
+    public long getUrlFetchMs() {
+        return urlFetchMs;
+    }
+
+    public long getFirstByteMs() {
+        return firstByteMs;
+    }
+
+    public long getLastByteMs() {
+        return lastByteMs;
+    }
+
+    /** @return Time between last byte sent and response received. */
+    public long getServerMs() {
+        return lastByteMs >= 0 && responseMs >= 0 ? responseMs - lastByteMs : -1;
+    }
+
+    public long getTotalMs() {
+        return totalMs;
+    }
+
+    /** @return Bytes transferred, including ones by previous attempts if resumed. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** @return HTTP status code, or -1 if there was no response. */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** @return Why there was no response, or null. */
+    @Nullable
+    public String getError() {
+        return error;
+    }
+
+    /** @return Whether upload was skipped because backend already had the content. */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /** @return Times of {@link #getBytesPerSecond()} samples, since the start. */
+    public long[] getRateAtMs() {
+        return rateAtMs.clone();
+    }
+
+    /** @return Smoothed transfer rate, sampled about once a second. */
+    public float[] getBytesPerSecond() {
+        return bytesPerSecond.clone();
+    }
+
+    /** @return One line of JSON, as stored by {@link UploadMetricsStore}. */
+    @Nonnull
+    public String toJson() {
+        try {
+            JSONArray rates = new JSONArray();
+            for (int i = 0; i < rateAtMs.length; i++) {
+                rates.put(new JSONArray().put(rateAtMs[i]).put(Math.round(bytesPerSecond[i])));
+            }
+            return new JSONObject()
+                    .put("file", filePath.toString())
+                    .put("startedAt", startedAt)
+                    .put("attempt", attempt)
+                    .put("chunked", chunked)
+                    .put("urlFetchMs", urlFetchMs)
+                    .put("firstByteMs", firstByteMs)
+                    .put("lastByteMs", lastByteMs)
+                    .put("serverMs", getServerMs())
+                    .put("totalMs", totalMs)
+                    .put("bytes", bytes)
+                    .put("status", statusCode)
+                    .putOpt("error", error)
+                    .put("duplicate", duplicate)
+                    .put("rates", rates)
+                    .toString();
+        } catch (JSONException e) {
+            // Only thrown for NaN and infinite doubles, we have none.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /**
+     * Collects timings while upload goes. Stages may be marked from different threads (chunked upload has many),
+     * so marks are volatile, and rate samples are guarded.
+     */
+    static class Builder {
+        /** Enough for a few minutes at one sample per second, later samples are thinned out. */
+        private static final int MAX_RATE_SAMPLES = 256;
+        private static final long RATE_SAMPLE_INTERVAL_MS = 1000;
+
+        private final Uri filePath;
+        private final long startedAt = System.currentTimeMillis();
+        private final long startedAtUptime = SystemClock.uptimeMillis();
+        private final int attempt;
+
+        private volatile boolean chunked;
+        private volatile long urlFetchMs = -1;
+        private volatile UploadProgressSampler sampler;
+        private volatile long responseMs = -1;
+        private volatile long bytes;
+        private volatile boolean duplicate;
+
+        /** Guarded by this. */
+        private final long[] rateAtMs = new long[MAX_RATE_SAMPLES];
+        /** Guarded by this. */
+        private final float[] bytesPerSecond = new float[MAX_RATE_SAMPLES];
+        /** Guarded by this. */
+        private int rateSamples;
+        /** Guarded by this. Doubles when arrays fill up. */
+        private long rateIntervalMs = RATE_SAMPLE_INTERVAL_MS;
+
+        Builder(@Nonnull Uri filePath, int attempt) {
+            this.filePath = filePath;
+            this.attempt = attempt;
+        }
+
+        private long elapsed() {
+            return SystemClock.uptimeMillis() - startedAtUptime;
+        }
+
+        private long sinceStart(long uptime) {
+            return uptime < 0 ? -1 : uptime - startedAtUptime;
+        }
+
+        void chunked() {
+            chunked = true;
+        }
+
+        /** First and last byte times are taken from it, exactly, not from throttled snapshots. */
+        void sampler(@Nonnull UploadProgressSampler sampler) {
+            this.sampler = sampler;
+        }
+
+        void urlFetched(long startedAtUptime) {
+            urlFetchMs = SystemClock.uptimeMillis() - startedAtUptime;
+        }
+
+        void responseReceived() {
+            responseMs = elapsed();
+        }
+
+        void duplicate() {
+            duplicate = true;
+        }
+
+        /** Called with every published progress snapshot. */
+        synchronized void progress(UploadProgress progress) {
+            long now = elapsed();
+            bytes = progress.getTransferred();
+
+            if (rateSamples > 0 && now - rateAtMs[rateSamples - 1] < rateIntervalMs) {
+                return;
+            }
+            if (rateSamples == MAX_RATE_SAMPLES) {
+                thinOut();
+            }
+            rateAtMs[rateSamples] = now;
+            bytesPerSecond[rateSamples] = progress.getBytesPerSecond();
+            rateSamples++;
+        }
+
+        /** Keeps every other sample, so a long upload is still covered from start to end. */
+        private void thinOut() {
+            int kept = 0;
+            for (int i = 0; i < rateSamples; i += 2) {
+                rateAtMs[kept] = rateAtMs[i];
+                bytesPerSecond[kept] = bytesPerSecond[i];
+                kept++;
+            }
+            rateSamples = kept;
+            rateIntervalMs *= 2;
+        }
+
+        synchronized UploadMetrics build(int statusCode) {
+            return new UploadMetrics(this, elapsed(), statusCode, null);
+        }
+
+        synchronized UploadMetrics build(@Nonnull Exception error) {
+            return new UploadMetrics(this, elapsed(), -1, error.toString());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import javax.annotation.Nonnull;
+
+import name.dlazerka.androidupload.R;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * Publishes {@link UploadMetrics} of every finished upload attempt, and optionally keeps them on disk.
+ *
+ * Stored as JSON lines in app's private files, if enabled by R.bool.upload_metrics_store.
+ * Rolling: when the file grows over R.integer.upload_metrics_max_bytes, it becomes the ".old" one,
+ * replacing the previous, so at most twice that is kept. Appending one line per attempt is cheap enough
+ * to do on upload thread.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class UploadMetricsStore {
+    private static final Logger logger = LoggerFactory.getLogger(UploadMetricsStore.class);
+
+    private static final String FILE_NAME = "upload-metrics";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static UploadMetricsStore instance;
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final File file;
+    private final File oldFile;
+
+    private final Subject<UploadMetrics, UploadMetrics> subject =
+            PublishSubject.<UploadMetrics>create().toSerialized();
+
+    @Nonnull
+    public static synchronized UploadMetricsStore get(@Nonnull Context context) {
+        if (instance == null) {
+            Resources resources = context.getResources();
+            instance = new UploadMetricsStore(
+                    resources.getBoolean(R.bool.upload_metrics_store),
+                    resources.getInteger(R.integer.upload_metrics_max_bytes),
+                    context.getFilesDir());
+        }
+        return instance;
+    }
+
+    private UploadMetricsStore(boolean enabled, long maxBytes, File dir) {
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+        this.file = new File(dir, FILE_NAME);
+        this.oldFile = new File(dir, FILE_NAME + ".old");
+    }
+
+    /** Metrics of attempts as they finish, emitted from upload threads. */
+    @Nonnull
+    public Observable<UploadMetrics> getObservable() {
+        return subject;
+    }
+
+    void record(@Nonnull UploadMetrics metrics) {
+        logger.info("Upload metrics: {}", metrics);
+        subject.onNext(metrics);
+        if (enabled) {
+            append(metrics.toJson());
+        }
+    }
+
+    private synchronized void append(String line) {
+        if (file.length() > maxBytes && !file.renameTo(oldFile)) {
+            logger.warn("Cannot rotate {}", file);
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+            //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            // Metrics are not worth failing the upload.
+            logger.warn("Cannot store metrics: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes all stored metrics, oldest first, one JSON object per line. Nothing if store is disabled.
+     */
+    public synchronized void export(@Nonnull Writer out) throws IOException {
+        copy(oldFile, out);
+        copy(file, out);
+        out.flush();
+    }
+
+    private static void copy(File from, Writer out) throws IOException {
+        if (!from.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(from), UTF_8));
+        //noinspection TryFinallyCanBeTryWithResources, API 16 doesn't support it
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Deletes stored metrics, e.g. after they've been exported. */
+    public synchronized void clear() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Cannot delete {}", file);
+        }
+        if (oldFile.exists() && !oldFile.delete()) {
+            logger.warn("Cannot delete {}", oldFile);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import name.dlazerka.androidupload.Application;
+import name.dlazerka.androidupload.R;
+import rx.Scheduler;
+import rx.functions.Action0;
+
+/**
+ * Notifications of all uploads of {@link UploadService}: one per file, tagged by file path, and a group summary
+ * with aggregate progress and ETA (API 20+, before that there are no groups).
+ *
+ * Uploads only record what has changed. Notifications are posted by ticks, at most
+ * R.integer.notifications_per_second of them in total, so a batch of uploads doesn't flood system UI.
+ * Each tick posts one notification, changed ones go in the order they first changed, and changes that came
+ * while waiting are coalesced into one notify().
+ *
+ * Not thread-safe, all methods are to be called on the worker's thread, i.e. UploadService's status thread.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadNotifier {
+    private static final String GROUP = "uploads";
+    /** Key of the summary in {@link #dirty}, never a file. */
+    private static final Uri SUMMARY = Uri.EMPTY;
+    private static final boolean GROUPS_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH;
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final Bitmap largeIcon;
+    private final Scheduler.Worker worker;
+    private final UploadProgressFormat progressFormat;
+    private final long minIntervalMs;
+
+    /** Uploads that weren't finished, or whose finish wasn't posted yet. */
+    private final Map<Uri, Item> items = new LinkedHashMap<>();
+    /** What to post, in order of first change. */
+    private final Set<Uri> dirty = new LinkedHashSet<>();
+    /** Finished since the last time there were no uploads. */
+    private int finishedCount;
+    private long lastNotifyAt;
+    private boolean tickScheduled;
+
+    private final Action0 tick = new Action0() {
+        @Override
+        public void call() {
+            tickScheduled = false;
+            Iterator<Uri> iterator = dirty.iterator();
+            if (!iterator.hasNext()) {
+                return;
+            }
+            Uri key = iterator.next();
+            iterator.remove();
+            post(key);
+            scheduleTick();
+        }
+    };
+
+    private static class Item {
+        final Notification.Builder builder;
+        UploadProgress progress;
+        boolean finished;
+
+        Item(Notification.Builder builder) {
+            this.builder = builder;
+        }
+    }
+
+    public UploadNotifier(
+            @Nonnull Context context,
+            @Nonnull NotificationManager notificationManager,
+            @Nonnull Bitmap largeIcon,
+            @Nonnull Scheduler.Worker worker
+    ) {
+        this.context = context;
+        this.notificationManager = notificationManager;
+        this.largeIcon = largeIcon;
+        this.worker = worker;
+        this.progressFormat = new UploadProgressFormat(context);
+        this.minIntervalMs = 1000 / context.getResources().getInteger(R.integer.notifications_per_second);
+    }
+
+    public void started(@Nonnull Uri filePath, @Nonnull Intent progressIntent) {
+        if (items.isEmpty()) {
+            finishedCount = 0;
+        }
+        PendingIntent pendingIntent =
+                PendingIntent.getActivity(context, 0, progressIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification.Builder builder = newBuilder()
+                .setSmallIcon(R.drawable.upload_gray)
+                .setLargeIcon(largeIcon)
+                .setContentTitle(context.getString(R.string.app_name))
+                .setContentText(context.getString(R.string.uploading_s, filePath.getLastPathSegment()))
+                .setProgress(100, 0, true)
+                .setContentIntent(pendingIntent);
+        items.put(filePath, new Item(builder));
+        changed(filePath);
+    }
+
+    public void progress(@Nonnull Uri filePath, @Nonnull UploadProgress progress) {
+        Item item = items.get(filePath);
+        if (item == null || item.finished) {
+            return;
+        }
+        item.progress = progress;
+        changed(filePath);
+    }
+
+    public void finished(@Nonnull Uri filePath, @Nonnull Intent finishedIntent) {
+        Item item = items.get(filePath);
+        if (item == null) {
+            return;
+        }
+        PendingIntent pendingIntent =
+                PendingIntent.getActivity(context, 0, finishedIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        item.builder
+                .setSubText(context.getString(R.string.uploaded_s, filePath.getLastPathSegment()))
+                .setContentText(context.getString(R.string.thanks))
+                .setProgress(0, 0, false)
+                .setContentIntent(pendingIntent)
+                .setAutoCancel(true);
+        item.finished = true;
+        finishedCount++;
+        changed(filePath);
+    }
+
+    /**
+     * Upload has failed, its notification says so instead of progress, and whether it's going to be retried.
+     * A retry posts a new one with the same tag.
+     */
+    public void failed(@Nonnull Uri filePath, boolean retrying) {
+        Item item = items.get(filePath);
+        if (item == null) {
+            return;
+        }
+        int text = retrying ? R.string.upload_retrying_s : R.string.upload_failed_s;
+        item.builder
+                .setContentText(context.getString(text, filePath.getLastPathSegment()))
+                .setSubText(null)
+                .setProgress(0, 0, false)
+                .setAutoCancel(true);
+        item.finished = true;
+        changed(filePath);
+    }
+
+    /** Posts everything pending right away, and stops. Called from any thread. */
+    public void stop() {
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                for (Uri key : dirty.toArray(new Uri[dirty.size()])) {
+                    post(key);
+                }
+                dirty.clear();
+                worker.unsubscribe();
+            }
+        });
+    }
+
+    private void changed(Uri key) {
+        dirty.add(key);
+        if (GROUPS_SUPPORTED) {
+            dirty.add(SUMMARY);
+        }
+        scheduleTick();
+    }
+
+    private void scheduleTick() {
+        if (tickScheduled || dirty.isEmpty()) {
+            return;
+        }
+        tickScheduled = true;
+        long delay = lastNotifyAt + minIntervalMs - SystemClock.uptimeMillis();
+        worker.schedule(tick, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void post(Uri key) {
+        lastNotifyAt = SystemClock.uptimeMillis();
+        if (key == SUMMARY) {
+            postSummary();
+            return;
+        }
+        Item item = items.get(key);
+        if (item == null) {
+            return;
+        }
+        if (item.finished) {
+            items.remove(key);
+        } else if (item.progress != null) {
+            item.builder
+                    .setProgress(100, Math.round(item.progress.getFraction() * 100), false)
+                    .setSubText(progressFormat.format(item.progress));
+        }
+        notificationManager.notify(key.toString(), Application.NOTIFICATION_ID_UPLOAD, item.builder.build());
+    }
+
+    /** Sums up uploads in progress, or tells how many have finished if none is. */
+    private void postSummary() {
+        long transferred = 0;
+        long total = 0;
+        float bytesPerSecond = 0;
+        int active = 0;
+        for (Item item : items.values()) {
+            if (item.finished) {
+                continue;
+            }
+            active++;
+            if (item.progress != null) {
+                transferred += item.progress.getTransferred();
+                total += item.progress.getTotal();
+                bytesPerSecond += item.progress.getBytesPerSecond();
+            }
+        }
+
+        Notification.Builder builder = newBuilder()
+                .setSmallIcon(R.drawable.upload_gray)
+                .setLargeIcon(largeIcon)
+                .setContentTitle(context.getString(R.string.app_name));
+        if (active > 0) {
+            builder.setContentText(context.getResources().getQuantityString(R.plurals.uploading_n, active, active));
+            if (total > 0) {
+                long etaMs = bytesPerSecond > 0 ? (long) ((total - transferred) * 1000 / bytesPerSecond) : -1;
+                UploadProgress sum = new UploadProgress(transferred, total, bytesPerSecond, etaMs);
+                builder.setProgress(100, Math.round(sum.getFraction() * 100), false)
+                        .setSubText(progressFormat.format(sum));
+            } else {
+                builder.setProgress(100, 0, true);
+            }
+        } else {
+            builder.setContentText(
+                    context.getResources().getQuantityString(R.plurals.uploaded_n, finishedCount, finishedCount))
+                    .setAutoCancel(true);
+        }
+        notificationManager.notify(Application.NOTIFICATION_ID_UPLOAD_SUMMARY, setGroupSummary(builder).build());
+    }
+
+    private Notification.Builder newBuilder() {
+        Notification.Builder builder = new Notification.Builder(context);
+        if (GROUPS_SUPPORTED) {
+            setGroup(builder);
+        }
+        return builder;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
+    private static void setGroup(Notification.Builder builder) {
+        builder.setGroup(GROUP);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
+    private static Notification.Builder setGroupSummary(Notification.Builder builder) {
+        return builder.setGroupSummary(true);
+    }
+}
@@ -16,20 +16,35 @@
 
 package name.dlazerka.androidupload.upload;
 
-import android.os.SystemClock;
-
 /**
+ * Immutable snapshot of upload progress. Rate and ETA are estimated by {@link UploadProgressSampler}
+ * when the snapshot is taken, so getters are cheap to call from UI.
+ *
  * @author Dzmitry Lazerka
  */
 class UploadProgress {
     private final long transferred;
     private final long total;
-    private final long startedAtMs;
+    private final float bytesPerSecond;
+    private final long etaMs;
 
-    public UploadProgress(long transferred, long total, long startedAtMs) {
+    /**
+     * @param bytesPerSecond current (smoothed) transfer rate.
+     * @param etaMs estimated time left, or -1 if unknown.
+     */
+    public UploadProgress(long transferred, long total, float bytesPerSecond, long etaMs) {
         this.transferred = transferred;
         this.total = total;
-        this.startedAtMs = startedAtMs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaMs = etaMs;
+    }
+
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public long getTotal() {
+        return total;
     }
 
     public float getFraction() {
@@ -37,8 +52,11 @@ class UploadProgress {
     }
 
     public float getBytesPerSecond() {
-        long current = SystemClock.uptimeMillis();
-        long elapsedMs = current - startedAtMs;
-        return (float) transferred * 1000 / elapsedMs;
+        return bytesPerSecond;
+    }
+
+    /** @return Estimated milliseconds left, or -1 if unknown. */
+    public long getEtaMs() {
+        return etaMs;
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+import java.text.ChoiceFormat;
+import java.text.DecimalFormat;
+
+import name.dlazerka.androidupload.R;
+
+/**
+ * Human-readable rate and ETA, shared by UploadActivity and notifications.
+ * Not thread-safe, as the underlying formats aren't.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadProgressFormat {
+    private final Context context;
+    private final ChoiceFormat choiceFormat;
+    private final DecimalFormat rateNumberFormat;
+
+    public UploadProgressFormat(Context context) {
+        this.context = context;
+        this.choiceFormat = new ChoiceFormat(context.getString(R.string.rate_choice));
+        this.rateNumberFormat = new DecimalFormat(context.getString(R.string.rate_number_format));
+    }
+
+    /** @return E.g. "12.3 MB/s, 01:05 left", or just "12.3 MB/s" if ETA is unknown. */
+    public String format(UploadProgress progress) {
+        String rate = formatRate(progress.getBytesPerSecond());
+        if (progress.getEtaMs() < 0) {
+            return rate;
+        }
+        String eta = DateUtils.formatElapsedTime(progress.getEtaMs() / 1000);
+        return context.getString(R.string.rate_eta, rate, eta);
+    }
+
+    public String formatRate(float bytesPerSecond) {
+        // Example: "%s MB/s"
+        String format1 = choiceFormat.format(Math.round(bytesPerSecond));
+
+        if (bytesPerSecond >= 1000_000) {
+            bytesPerSecond /= 1000_000;
+        } else if (bytesPerSecond >= 1000) {
+            bytesPerSecond /= 1000;
+        }
+        // Example: "12.3"
+        String number = rateNumberFormat.format(bytesPerSecond);
+
+        return String.format(format1, number);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+/**
+ * Counts transferred bytes of a single upload, and publishes {@link UploadProgress} snapshots
+ * only once in a while: when given interval has passed, or given fraction of file has been transferred,
+ * whichever comes first. Last snapshot (all bytes transferred) is always published.
+ *
+ * Counting itself doesn't allocate, so I/O loop may call {@link #add} as often as it likes.
+ * Thread-safe, parts of the same file may be uploaded in parallel. Snapshots are taken and published under a lock,
+ * so they come out in order, and nothing follows the last one.
+ *
+ * Rate is an exponentially weighted moving average with time constant {@link #RATE_TIME_CONSTANT_MS},
+ * so that it follows network changes (e.g. Wi-Fi to LTE handoff) within a few seconds,
+ * instead of being a lifetime average.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadProgressSampler {
+    static final long RATE_TIME_CONSTANT_MS = 3000;
+
+    private final long total;
+    private final long intervalMs;
+    private final long stepBytes;
+
+    private final AtomicLong transferred = new AtomicLong();
+    private final AtomicLong lastSampleMs;
+    private volatile long lastSampleTransferred;
+    private volatile long firstByteAt = -1;
+    private volatile long lastByteAt = -1;
+
+    /** Guarded by this. */
+    private long rateMs;
+    /** Guarded by this. */
+    private long rateTransferred;
+    /** Guarded by this. Negative until first estimate. */
+    private float bytesPerSecond = -1;
+    /** Guarded by this. */
+    private boolean finished;
+
+    /** Guarded by this, so it's serialized. */
+    private final PublishSubject<UploadProgress> subject = PublishSubject.create();
+
+    /**
+     * @param total file length.
+     * @param intervalMs publish at least this often, if there's any progress.
+     * @param stepFraction publish when this fraction of file was transferred since last snapshot, e.g. 0.01.
+     */
+    public UploadProgressSampler(long total, long intervalMs, float stepFraction) {
+        this.total = total;
+        this.intervalMs = intervalMs;
+        this.stepBytes = Math.max(1, (long) (total * stepFraction));
+        this.rateMs = SystemClock.uptimeMillis();
+        this.lastSampleMs = new AtomicLong(rateMs);
+    }
+
+    /** Snapshots, possibly emitted from I/O threads. */
+    public Observable<UploadProgress> getObservable() {
+        return subject;
+    }
+
+    /** @return Uptime when {@link #add} was first called, i.e. first byte went out, or -1. */
+    public long getFirstByteAt() {
+        return firstByteAt;
+    }
+
+    /** @return Uptime when all bytes were transferred, or -1. */
+    public long getLastByteAt() {
+        return lastByteAt;
+    }
+
+    /**
+     * Counts bytes transferred by a previous attempt, so they don't affect the rate.
+     */
+    public synchronized void addTransferredBefore(long bytes) {
+        transferred.addAndGet(bytes);
+        rateTransferred += bytes;
+    }
+
+    /**
+     * Upload starts over, e.g. after it was cancelled. Progress goes back to zero, while rate estimate and
+     * time of the first byte are kept. Call only between uploads.
+     */
+    public synchronized void restart() {
+        long current = transferred.getAndSet(0);
+        rateTransferred -= current;
+        lastSampleTransferred = 0;
+        lastByteAt = -1;
+        finished = false;
+    }
+
+    /**
+     * @param bytes transferred since last call, may be negative if a part is re-sent.
+     */
+    public void add(long bytes) {
+        long current = transferred.addAndGet(bytes);
+        long now = SystemClock.uptimeMillis();
+        if (firstByteAt < 0) {
+            firstByteAt = now;
+        }
+        if (current >= total) {
+            lastByteAt = now;
+            publish(now);
+            return;
+        }
+
+        long lastMs = lastSampleMs.get();
+        if (now - lastMs < intervalMs && current - lastSampleTransferred < stepBytes) {
+            return;
+        }
+        if (!lastSampleMs.compareAndSet(lastMs, now)) {
+            // Other thread is publishing right now.
+            return;
+        }
+        lastSampleTransferred = current;
+        publish(now);
+    }
+
+    /**
+     * Counter is read again under the lock, as other threads may have added to it since this one decided
+     * to publish, and their snapshots may have gone out already.
+     */
+    private synchronized void publish(long now) {
+        if (finished) {
+            return;
+        }
+        long current = transferred.get();
+        finished = current >= total;
+        subject.onNext(snapshot(current, now));
+    }
+
+    /** Guarded by this. */
+    private UploadProgress snapshot(long current, long now) {
+        long elapsedMs = now - rateMs;
+        if (elapsedMs > 0) {
+            float instantRate = (current - rateTransferred) * 1000f / elapsedMs;
+            if (bytesPerSecond < 0) {
+                bytesPerSecond = instantRate;
+            } else {
+                double weight = 1 - Math.exp(-elapsedMs / (double) RATE_TIME_CONSTANT_MS);
+                bytesPerSecond += weight * (instantRate - bytesPerSecond);
+            }
+            rateMs = now;
+            rateTransferred = current;
+        }
+
+        float rate = Math.max(bytesPerSecond, 0);
+        long etaMs = rate > 0 ? Math.max(0, (long) ((total - current) * 1000 / rate)) : -1;
+        return new UploadProgress(current, total, rate, etaMs);
+    }
+}
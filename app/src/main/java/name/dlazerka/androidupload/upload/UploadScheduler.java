@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import name.dlazerka.androidupload.R;
+
+/**
+ * Decides when queued uploads actually go to {@link UploadService}.
+ *
+ * Waking up cellular radio costs not only the transfer, but also several seconds of high-power tail after it.
+ * So on a metered network, files are not uploaded one by one as they come, but collected for
+ * R.integer.upload_batch_window_ms and then started together, sharing one radio-active window.
+ * On unmetered network they start right away.
+ *
+ * Files bigger than R.integer.large_upload_bytes wait for unmetered network or charging,
+ * rechecked every R.integer.upload_recheck_interval_ms, on power connection and on connectivity changes.
+ *
+ * Failed uploads stay in {@link UploadJournal} and are retried after exponential backoff,
+ * together with anything else pending at that time. Each one records when it's due next, so that other wake-ups
+ * (new uploads, power and connectivity changes) don't retry it earlier. After R.integer.upload_max_attempts
+ * it's given up.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(UploadScheduler.class);
+
+    static final String ACTION_RUN = "name.dlazerka.androidupload.upload.RUN_PENDING";
+
+    /**
+     * Elapsed realtime of the earliest alarm set, so that a later one doesn't replace it.
+     * Alarms outlive the process while this doesn't, worst case a run happens a bit later than it could.
+     */
+    private static long nextRunAt;
+
+    private final Context context;
+    private final UploadJournal journal;
+    private final long largeUploadBytes;
+    private final long batchWindowMs;
+    private final long recheckIntervalMs;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+    private final int maxAttempts;
+
+    public UploadScheduler(@Nonnull Context context) {
+        this.context = context.getApplicationContext();
+        this.journal = UploadJournal.get(context);
+
+        Resources resources = context.getResources();
+        largeUploadBytes = resources.getInteger(R.integer.large_upload_bytes);
+        batchWindowMs = resources.getInteger(R.integer.upload_batch_window_ms);
+        recheckIntervalMs = resources.getInteger(R.integer.upload_recheck_interval_ms);
+        backoffBaseMs = resources.getInteger(R.integer.upload_backoff_base_ms);
+        backoffMaxMs = resources.getInteger(R.integer.upload_backoff_max_ms);
+        maxAttempts = resources.getInteger(R.integer.upload_max_attempts);
+    }
+
+    /**
+     * Queues upload, use instead of startService().
+     * @param intent created by {@link UploadService#createMyIntent}.
+     */
+    public void schedule(@Nonnull Intent intent) {
+        journal.add(intent);
+
+        NetworkInfo network = getActiveNetwork();
+        if (network != null && !isMetered()) {
+            runPending();
+        } else {
+            logger.info("Batching {}", intent.getData());
+            runAt(SystemClock.elapsedRealtime() + batchWindowMs);
+        }
+    }
+
+    /** Starts every pending upload that is allowed to run now. */
+    public void runPending() {
+        synchronized (UploadScheduler.class) {
+            nextRunAt = 0;
+        }
+
+        int started = 0;
+        for (UploadJournal.Entry entry : getRunnable()) {
+            Intent intent = entry.toIntent();
+            if (intent != null) {
+                context.startService(intent);
+                started++;
+            }
+        }
+        logger.info("Started {} uploads", started);
+    }
+
+    /**
+     * Pending uploads that are due, and that network and power state allow to run now. The state is read once
+     * for all of them, and file sizes are recorded in the journal, so a long queue costs little.
+     * If some are deferred, schedules a recheck, or a run when the earliest of them is due.
+     */
+    @Nonnull
+    public List<UploadJournal.Entry> getRunnable() {
+        List<UploadJournal.Entry> pending = journal.getPending();
+        List<UploadJournal.Entry> runnable = new ArrayList<>(pending.size());
+        long now = System.currentTimeMillis();
+        long nextDueAt = Long.MAX_VALUE;
+        boolean deferred = false;
+        if (getActiveNetwork() == null) {
+            deferred = !pending.isEmpty();
+        } else {
+            boolean metered = isMetered();
+            Boolean charging = null;
+            for (UploadJournal.Entry entry : pending) {
+                if (entry.nextAttemptAt > now) {
+                    nextDueAt = Math.min(nextDueAt, entry.nextAttemptAt);
+                    continue;
+                }
+                if (metered && getSize(entry) > largeUploadBytes) {
+                    if (charging == null) {
+                        charging = isCharging();
+                    }
+                    if (!charging) {
+                        logger.debug("Deferring large {} until unmetered network or charging", entry.filePath);
+                        deferred = true;
+                        continue;
+                    }
+                }
+                runnable.add(entry);
+            }
+        }
+
+        if (deferred) {
+            runAt(SystemClock.elapsedRealtime() + recheckIntervalMs);
+        }
+        if (nextDueAt != Long.MAX_VALUE) {
+            runAt(SystemClock.elapsedRealtime() + nextDueAt - now);
+        }
+        return runnable;
+    }
+
+    /**
+     * Called when upload has failed, but may be retried.
+     * @param attempts how many times it was tried already.
+     * @return Whether it will be retried, false if there were too many attempts. Then caller gives it up.
+     */
+    public boolean scheduleRetry(@Nonnull Uri filePath, int attempts) {
+        if (attempts >= maxAttempts) {
+            logger.warn("Not retrying {} after {} attempts", filePath, attempts);
+            return false;
+        }
+        long delay = backoffBaseMs << Math.min(Math.max(attempts - 1, 0), 20);
+        delay = Math.min(delay, backoffMaxMs);
+        logger.info("Retrying {} in {} ms after {} attempts", filePath, delay, attempts);
+        journal.setNextAttemptAt(filePath, System.currentTimeMillis() + delay);
+        runAt(SystemClock.elapsedRealtime() + delay);
+        return true;
+    }
+
+    private void runAt(long elapsedRealtime) {
+        synchronized (UploadScheduler.class) {
+            if (nextRunAt != 0 && nextRunAt <= elapsedRealtime) {
+                return;
+            }
+            nextRunAt = elapsedRealtime;
+        }
+
+        Intent intent = new Intent(context, UploadSchedulerReceiver.class).setAction(ACTION_RUN);
+        PendingIntent pendingIntent =
+                PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Wakeup one, otherwise a batch window or a retry that ends while screen is off waits until user is back.
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedRealtime, pendingIntent);
+    }
+
+    private NetworkInfo getActiveNetwork() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+        return network != null && network.isConnected() ? network : null;
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager.isActiveNetworkMetered();
+    }
+
+    private boolean isCharging() {
+        // Sticky broadcast, no receiver needed.
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /** @return Size of file to upload, or 0 if unknown. Read once, then kept in the journal. */
+    private long getSize(UploadJournal.Entry entry) {
+        if (entry.size >= 0) {
+            return entry.size;
+        }
+        try {
+            ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(entry.filePath, "r");
+            if (fd == null) {
+                return 0;
+            }
+            try {
+                long size = fd.getStatSize();
+                if (size >= 0) {
+                    journal.setSize(entry.filePath, size);
+                }
+                return Math.max(size, 0);
+            } finally {
+                fd.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Let UploadTask find it out and report.
+            return 0;
+        } catch (IOException e) {
+            logger.warn("Cannot close {}", entry.filePath, e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wakes {@link UploadScheduler} on its own alarms, on power connection, and on connectivity changes
+ * (the latter aren't delivered to manifest receivers since Android N, the periodic recheck covers that).
+ *
+ * Public only for Android, should be package-private.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class UploadSchedulerReceiver extends BroadcastReceiver {
+    private static final Logger logger = LoggerFactory.getLogger(UploadSchedulerReceiver.class);
+
+    /**
+     * Scheduler reads the journal and sizes of pending files, so that's not on main thread.
+     * Broadcast is kept pending meanwhile, so that process isn't killed, and device woken by alarm stays awake.
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        logger.debug("onReceive {}", intent.getAction());
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new UploadScheduler(appContext).runPending();
+                } finally {
+                    result.finish();
+                }
+            }
+        }, "UploadSchedulerReceiver").start();
+    }
+}
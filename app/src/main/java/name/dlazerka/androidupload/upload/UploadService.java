@@ -16,76 +16,113 @@
 
 package name.dlazerka.androidupload.upload;
 
-import android.app.IntentService;
-import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
+import android.os.IBinder;
 
-import com.squareup.okhttp.MultipartBuilder;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.RequestBody;
-import com.squareup.okhttp.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import name.dlazerka.androidupload.Application;
 import name.dlazerka.androidupload.R;
-import rx.Observer;
-import rx.functions.Action1;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Uploads file. Since it's IntentService, runs in background, one instance per upload.
+ * Uploads files in background. Each intent is one file, see {@link UploadTask}.
+ * Up to R.integer.upload_concurrency files are uploaded in parallel, the rest wait in queue.
+ * Small plain files that wait together are uploaded in one request, see {@link UploadBatch}.
  *
- * See {@link #createMyIntent} to start this service.
+ * See {@link #createMyIntent} to create an intent for this service,
+ * and {@link UploadScheduler#schedule} to start it when network allows.
  * Make sure to call {@link UploadStatusObservables#createSubject} before starting this service.
  *
+ * Every queued upload is recorded in {@link UploadJournal} until it finishes, and the journal is replayed
+ * when service is created, so uploads survive process death even if Android doesn't redeliver their intents.
+ * Redelivered intents of uploads that already finished are ignored.
+ *
  * Public only for Android, should be package-private.
  *
  * @author Dzmitry Lazerka
  */
-public class UploadService extends IntentService {
+public class UploadService extends Service {
     private static final Logger logger = LoggerFactory.getLogger(UploadService.class);
 
     // Public to be able to create custom intent, not using {@link #createMyIntent}.
     public static final String EXTRA_CONTENT_TYPE = "content_type";
     public static final String EXTRA_PROGRESS_INTENT = "progress_intent";
     public static final String EXTRA_FINISHED_INTENT = "finished_intent";
+    /** Whether to upload in resumable chunks, see {@link ChunkedUploader}. Default: false. */
+    public static final String EXTRA_RESUMABLE = "resumable";
+    /**
+     * How many connections to upload a single file over, see {@link ChunkedUploader}. Default: 1.
+     * Greater than one implies {@link #EXTRA_RESUMABLE}.
+     */
+    public static final String EXTRA_PARALLEL_CONNECTIONS = "parallel_connections";
+    /**
+     * Whether to downscale images before upload, see {@link ImageDownscaler}. Default: false.
+     * Size and quality are configured by R.integer.image_max_dimension and R.integer.image_quality.
+     */
+    public static final String EXTRA_DOWNSCALE_IMAGES = "downscale_images";
+    /**
+     * Whether to gzip file, if its content type is compressible (text, JSON, CSV, etc).
+     * Implies {@link #EXTRA_RESUMABLE}, as each chunk is compressed separately. Default: false.
+     */
+    public static final String EXTRA_GZIP = "gzip";
 
-    private Uri filePath;
-    private String contentType;
-    private Intent progressIntent;
-    private Intent finishedIntent;
+    /** How long interrupted uploads have to publish their final statuses. */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
 
     private final OkHttpClient uploadClient;
 
-    private Notification.Builder notificationBuilder;
     private NotificationManager notificationManager;
-    private Observer<UploadStatus> statusObserver;
+    private Bitmap largeIcon;
+    private ExecutorService executor;
+    /** Status fan-out to UI and notifications, so that upload threads never wait for them. */
+    private ExecutorService statusExecutor;
+    private Scheduler statusScheduler;
+    /** Duplicate checks, alongside uploads, so that they never wait for an upload thread to free up. */
+    private ExecutorService checkExecutor;
+    private UploadNotifier notifier;
+
+    /** Guarded by this. Number of tasks submitted, but not yet finished. */
+    private int pendingTasks;
+    /** Guarded by this. */
+    private int lastStartId;
+    /** Guarded by this. Files submitted, but not yet finished, so that the same file isn't queued twice. */
+    private final Set<Uri> queued = new HashSet<>();
+    /** Guarded by itself. Tasks that may go in one request with others, each has a runBatch() submitted. */
+    private final Deque<UploadTask> batchable = new ArrayDeque<>();
+    private long batchMaxBytes;
+    private int batchMaxFiles;
 
     public UploadService() {
-        super(UploadService.class.getSimpleName());
-        setIntentRedelivery(true);
-
-        uploadClient = Application.okHttpClient.clone();
-        uploadClient.setWriteTimeout(0, TimeUnit.DAYS);// never
-        uploadClient.setReadTimeout(0, TimeUnit.DAYS);// never
+        uploadClient = Application.uploadClient;
     }
 
     /**
@@ -116,113 +153,236 @@ public class UploadService extends IntentService {
     public void onCreate() {
         super.onCreate();
         notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        Bitmap bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.upload);
-        notificationBuilder = new Notification.Builder(this)
-                .setSmallIcon(R.drawable.upload_gray)
-                .setLargeIcon(bitmap)
-                .setContentTitle(getString(R.string.app_name));
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        filePath = checkNotNull(intent.getData());
-        Bundle extras = checkNotNull(intent.getExtras());
-        contentType = checkNotNull(extras.getString(EXTRA_CONTENT_TYPE));
-        progressIntent = (Intent) checkNotNull(extras.getParcelable(EXTRA_PROGRESS_INTENT));
-        finishedIntent = (Intent) checkNotNull(extras.getParcelable(EXTRA_FINISHED_INTENT));
-
-        logger.info("Uploading {} {}", contentType, filePath);
-
-        statusObserver = UploadStatusObservables.getObserver(filePath);
-
-        try {
-            uploadFile();
-
-            // Had we call onCompleted(), then UploadActivity might never had a chance to get Response.
-            // statusObserver.onCompleted();
-        } catch (IOException e) {
-            logger.warn("IOException: {}", e.getMessage(), e);
-            statusObserver.onError(e);
+        largeIcon = BitmapFactory.decodeResource(getResources(), R.drawable.upload);
+
+        int concurrency = getResources().getInteger(R.integer.upload_concurrency);
+        batchMaxBytes = getResources().getInteger(R.integer.upload_batch_max_bytes);
+        batchMaxFiles = getResources().getInteger(R.integer.upload_batch_max_files);
+        executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                return new Thread(r, "UploadService-" + counter.incrementAndGet());
+            }
+        });
+        statusExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                return new Thread(r, "UploadService-status");
+            }
+        });
+        statusScheduler = Schedulers.from(statusExecutor);
+        checkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                return new Thread(r, "UploadService-check-" + counter.incrementAndGet());
+            }
+        });
+        notifier = new UploadNotifier(this, notificationManager, largeIcon, statusScheduler.createWorker());
+
+        // Every service instance starts a batch of uploads, let handshake and fetching upload URLs happen
+        // while we prepare the first one.
+        Application.warmUp(getString(R.string.get_upload_url));
+        UploadUrlPool.get(this).prefetch();
+
+        // Not on main thread, it reads the journal, and may have to read sizes of files. Counted as a task,
+        // so that service isn't stopped before it's done.
+        synchronized (this) {
+            pendingTasks++;
         }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    restorePending();
+                } finally {
+                    onTaskFinished(null);
+                }
+            }
+        });
     }
 
-    private String loadUploadUrl() throws IOException {
-        String url = getResources().getString(R.string.get_upload_url);
-        Request request = new Request.Builder().url(url).build();
-        Response response = Application.okHttpClient.newCall(request).execute();
-        return response.body().string();
+    private void restorePending() {
+        UploadJournal journal = UploadJournal.get(this);
+        for (UploadJournal.Entry entry : new UploadScheduler(this).getRunnable()) {
+            Intent intent = entry.toIntent();
+            if (intent == null) {
+                journal.remove(entry.filePath);
+                continue;
+            }
+            logger.info("Restoring {} after {} attempts", entry.filePath, entry.attempts);
+            enqueue(intent);
+        }
     }
 
-    private void uploadFile() throws IOException {
-        showProgressNotification();
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        synchronized (this) {
+            lastStartId = startId;
+            // Counted as a task until it's queued, so that service isn't stopped meanwhile.
+            pendingTasks++;
+        }
 
-        String uploadUrl = loadUploadUrl();
+        final boolean redelivered = (flags & START_FLAG_REDELIVERY) != 0;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onStart(intent, redelivered);
+                } finally {
+                    onTaskFinished(null);
+                }
+            }
+        });
+        return START_REDELIVER_INTENT;
+    }
 
-        ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(filePath, "r");
-        if (fd == null) {
-            logger.error("fd is null for {}", filePath);
-            return;
+    /** On an upload thread, as the first one to touch the journal reads it whole. */
+    private void onStart(Intent intent, boolean redelivered) {
+        UploadJournal journal = UploadJournal.get(this);
+        Uri filePath = intent.getData();
+        if (redelivered && journal.get(filePath) == null) {
+            logger.info("Already finished {}", filePath);
+        } else {
+            journal.add(intent);
+            enqueue(intent);
         }
+    }
 
-        try {
-            List<String> pathSegments = filePath.getPathSegments();
-            String fileName = pathSegments.get(pathSegments.size() - 1);
+    /** Submits upload, unless the same file is already queued (e.g. restored from journal, then redelivered). */
+    private void enqueue(Intent intent) {
+        // Nobody has created it if process is new, e.g. upload is restored or redelivered.
+        UploadStatusObservables.createSubject(intent.getData());
+        final UploadTask task = new UploadTask(this, uploadClient, notifier, statusScheduler, checkExecutor, intent);
+        synchronized (this) {
+            if (!queued.add(task.getFilePath())) {
+                logger.info("Already queued {}", task.getFilePath());
+                return;
+            }
+            pendingTasks++;
+        }
+        logger.info("Queued {}", task.getFilePath());
 
-            UploadListeningBody body = new UploadListeningBody(fd, contentType);
-            body.getProgressObservable().subscribe(new Action1<UploadProgress>() {
+        if (task.isBatchable()) {
+            executor.execute(new Runnable() {
                 @Override
-                public void call(UploadProgress progress) {
-                    statusObserver.onNext(new UploadStatus(progress));
-                    updateNotification(progress);
+                public void run() {
+                    // So that it's sized and batched as it's going to be uploaded, e.g. downscaled.
+                    task.prepare();
+                    synchronized (batchable) {
+                        batchable.add(task);
+                    }
+                    // Behind runners of files queued meanwhile, so that it takes those prepared by then.
+                    try {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                runBatch();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        logger.info("Shutting down, {} is left for later", task.getFilePath());
+                    }
                 }
             });
+            return;
+        }
 
-            RequestBody requestBody = new MultipartBuilder()
-                    .addFormDataPart(Application.UPLOAD_FORM_PARAM, fileName, body)
-                    .build();
-
-            Request request = new Request.Builder()
-                    .url(uploadUrl)
-                    .post(requestBody)
-                    .build();
-
-            Response response = uploadClient.newCall(request).execute();
-
-            statusObserver.onNext(new UploadStatus(response));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    onTaskFinished(task.getFilePath());
+                }
+            }
+        });
+    }
 
-            showSuccessNotification();
+    /**
+     * Uploads whatever batchable files are waiting, in one request. Files that don't fit go with the next one,
+     * a file bigger than the limit goes alone. Does nothing if others have taken them all.
+     */
+    private void runBatch() {
+        List<UploadTask> batch = takeBatch();
+        try {
+            if (batch.size() == 1) {
+                batch.get(0).run();
+            } else if (!batch.isEmpty()) {
+                new UploadBatch(this, uploadClient, batch).run();
+            }
         } finally {
-            fd.close();
+            for (UploadTask task : batch) {
+                onTaskFinished(task.getFilePath());
+            }
         }
     }
 
-    private void showProgressNotification() {
-        PendingIntent pendingIntent =
-                PendingIntent.getActivity(this, 0, progressIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        notificationBuilder
-                .setContentText(getString(R.string.uploading_s, filePath.getLastPathSegment()))
-                .setProgress(100, 0, true)
-                .setContentIntent(pendingIntent);
-        notificationManager.notify(Application.NOTIFICATION_ID_UPLOAD, notificationBuilder.build());
+    /**
+     * Locked as a whole, so that a task being sized is never missed by another runner.
+     * Every task has its own runner submitted, and each one takes at least one task if there's any left.
+     */
+    private List<UploadTask> takeBatch() {
+        List<UploadTask> batch = new ArrayList<>();
+        long bytes = 0;
+        synchronized (batchable) {
+            while (batch.size() < batchMaxFiles && !batchable.isEmpty()) {
+                UploadTask task = batchable.peekFirst();
+                long size = task.getSize();
+                if (!batch.isEmpty() && (size < 0 || bytes + size > batchMaxBytes)) {
+                    break;
+                }
+                batchable.removeFirst();
+                batch.add(task);
+                bytes += size;
+                if (size < 0 || bytes >= batchMaxBytes) {
+                    break;
+                }
+            }
+        }
+        return batch;
     }
 
-    private void updateNotification(UploadProgress progress) {
-        notificationBuilder.setProgress(100, Math.round(progress.getFraction() * 100), false);
-        notificationManager.notify(Application.NOTIFICATION_ID_UPLOAD, notificationBuilder.build());
+    /** @param filePath null if it wasn't an upload. */
+    private synchronized void onTaskFinished(@Nullable Uri filePath) {
+        queued.remove(filePath);
+        pendingTasks--;
+        if (pendingTasks == 0) {
+            // If there's a newer intent on its way to onStartCommand(), this does nothing.
+            stopSelf(lastStartId);
+        }
     }
 
-    private void showSuccessNotification() {
-        PendingIntent pendingIntent =
-                PendingIntent.getActivity(this, 0, finishedIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        Notification notification = notificationBuilder
-                .setSubText(getString(R.string.uploaded_s, filePath.getLastPathSegment()))
-                .setContentText(getString(R.string.thanks))
-                .setProgress(0, 0, false)
-                .setContentIntent(pendingIntent)
-                .setAutoCancel(true)
-                .build();
+    @Override
+    public void onDestroy() {
+        executor.shutdownNow();
+        checkExecutor.shutdownNow();
+        // Not now, let final statuses of interrupted uploads and pending notifications through. Those come only
+        // once upload threads notice the interrupt, so wait for them, but not on main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        logger.warn("Uploads didn't stop in {}s, their statuses may be lost", SHUTDOWN_TIMEOUT_SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted", e);
+                } finally {
+                    notifier.stop();
+                    statusExecutor.shutdown();
+                }
+            }
+        }, "UploadService-shutdown").start();
+        super.onDestroy();
+    }
 
-        notificationManager.notify(Application.NOTIFICATION_ID_UPLOAD, notification);
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 }
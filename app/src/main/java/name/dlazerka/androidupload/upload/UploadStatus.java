@@ -24,24 +24,38 @@ import javax.annotation.Nonnull;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Exactly one field is not null.
+ * Either progress, or the final response, which is kept compact: just its status line,
+ * as the last status is retained by {@link UploadStatusObservables}, possibly for a while.
  *
  * @author Dzmitry Lazerka
  */
 class UploadStatus {
+    /** Null if finished. */
     public final UploadProgress progress;
-    public final Response response;
+    /** HTTP status code of the final response, 0 if not finished. */
+    public final int code;
+    /** Reason phrase of the final response, null if not finished. */
+    public final String message;
 
     public UploadStatus(@Nonnull UploadProgress progress) {
-        this(checkNotNull(progress), null);
+        this(checkNotNull(progress), 0, null);
     }
 
     public UploadStatus(@Nonnull Response response) {
-        this(null, checkNotNull(response));
+        this(null, response.code(), response.message());
     }
 
-    private UploadStatus(UploadProgress progress, Response response) {
-        this.response = response;
+    private UploadStatus(UploadProgress progress, int code, String message) {
         this.progress = progress;
+        this.code = code;
+        this.message = message;
+    }
+
+    public boolean isFinished() {
+        return progress == null;
+    }
+
+    public boolean isSuccessful() {
+        return code >= 200 && code < 300;
     }
 }
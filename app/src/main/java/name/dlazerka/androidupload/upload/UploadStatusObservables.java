@@ -17,12 +17,16 @@
 package name.dlazerka.androidupload.upload;
 
 import android.net.Uri;
+import android.os.SystemClock;
 
 import com.google.common.annotations.VisibleForTesting;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
@@ -37,48 +41,109 @@ import rx.subjects.BehaviorSubject;
  * All observables must be well-behaved (i.e. call onComplete() or onError() exactly once).
  * All methods are pure, so static for simplicity.
  *
+ * Each subject replays only the last status, which is compact. Subjects of finished uploads
+ * (final response or error) are removed by UploadActivity once it has shown the result, or, if it never does,
+ * evicted {@link #FINISHED_TTL_MS} after finishing. And there are never more than {@link #MAX_FINISHED}
+ * finished ones, oldest are evicted first. So memory stays flat however many uploads the process has seen.
+ * Active uploads are bounded by UploadService's journal, and never evicted.
+ *
  * @author Dzmitry Lazerka
  */
 class UploadStatusObservables {
     private static final Logger logger = LoggerFactory.getLogger(UploadStatusObservables.class);
 
+    /** Enough for user to come back to UploadActivity from a notification. */
+    static final long FINISHED_TTL_MS = 30 * 60 * 1000;
+    static final int MAX_FINISHED = 100;
+
     /**
      * Map from file we're uploading, to subject that reports status.
      * Subjects are used as event buses to publish upload status.
      *
      * Concurrent, because getObserver/getObservable are called from different threads.
      */
-    private static final ConcurrentHashMap<Uri, BehaviorSubject<UploadStatus>> statusPublishers
-            = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Uri, Entry> statusPublishers = new ConcurrentHashMap<>();
+
+    /** Subject, and observer that publishes into it, noting when upload has finished. */
+    private static class Entry implements Observer<UploadStatus> {
+        final BehaviorSubject<UploadStatus> subject = BehaviorSubject.create();
+        /** Uptime of the final status, 0 if not finished yet. */
+        volatile long finishedAt;
+
+        @Override
+        public void onNext(UploadStatus status) {
+            if (status.isFinished()) {
+                finishedAt = SystemClock.uptimeMillis();
+            }
+            subject.onNext(status);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            finishedAt = SystemClock.uptimeMillis();
+            subject.onError(e);
+        }
+
+        @Override
+        public void onCompleted() {
+            finishedAt = SystemClock.uptimeMillis();
+            subject.onCompleted();
+        }
 
+        boolean isFinished() {
+            return finishedAt != 0;
+        }
+    }
+
+    /**
+     * @return Subject for this uri, a new one unless there's one of an unfinished upload already.
+     */
     @Nonnull
     public static BehaviorSubject<UploadStatus> createSubject(@Nonnull Uri filePath) {
-        return create(filePath);
+        evictFinished();
+        return create(filePath).subject;
     }
 
     @Nonnull
-    private static BehaviorSubject<UploadStatus> create(@Nonnull Uri filePath) {
-        BehaviorSubject<UploadStatus> subject = BehaviorSubject.create();
-        return statusPublishers.putIfAbsent(filePath, subject);
+    private static Entry create(@Nonnull Uri filePath) {
+        Entry entry = new Entry();
+        while (true) {
+            Entry existing = statusPublishers.putIfAbsent(filePath, entry);
+            if (existing == null) {
+                return entry;
+            }
+            if (!existing.isFinished()) {
+                return existing;
+            }
+            // Same file again, replace the finished one, so that new statuses aren't lost in a terminated subject.
+            if (statusPublishers.replace(filePath, existing, entry)) {
+                return entry;
+            }
+        }
     }
 
     /** @return Old status observable. */
     @Nullable
     public static BehaviorSubject<UploadStatus> removeSubject(@Nonnull Uri filePath) {
-        return statusPublishers.remove(filePath);
+        Entry removed = statusPublishers.remove(filePath);
+        return removed == null ? null : removed.subject;
     }
 
     /**
      * @return Status observer for this uri. If one wasn't already created, will create a new one (and record an error).
+     * If there's one of a finished upload, it's replaced, as its subject has terminated already.
      */
     @Nonnull
     public static Observer<UploadStatus> getObserver(@Nonnull Uri filePath) {
-        BehaviorSubject<UploadStatus> result = statusPublishers.get(filePath);
+        Entry result = statusPublishers.get(filePath);
         if (result == null) {
             // Activity interaction got screwed up, definitely an error. Let's try to save face here.
             logger.error("Current statusObserver is null for {}," +
                     " should have been created by someone before calling this.", filePath);
             result = create(filePath);
+        } else if (result.isFinished()) {
+            logger.debug("Replacing status of finished upload of {}", filePath);
+            result = create(filePath);
         }
 
         return result;
@@ -89,15 +154,64 @@ class UploadStatusObservables {
      */
     @Nullable
     public static Observable<UploadStatus> getObservable(@Nonnull Uri filePath) {
-        return statusPublishers.get(filePath);
+        Entry entry = statusPublishers.get(filePath);
+        return entry == null ? null : entry.subject;
     }
 
+    /**
+     * @return Last status of every upload that hasn't finished, null if it has no status yet. In no order.
+     */
+    @Nonnull
+    public static Map<Uri, UploadStatus> getActive() {
+        Map<Uri, UploadStatus> result = new HashMap<>();
+        for (Map.Entry<Uri, Entry> mapEntry : statusPublishers.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (!entry.isFinished()) {
+                result.put(mapEntry.getKey(), entry.subject.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops finished entries that are older than TTL, or over the limit. Called when a new upload comes,
+     * that's the only time the map grows.
+     */
+    private static void evictFinished() {
+        long now = SystemClock.uptimeMillis();
+        int finished = 0;
+        long oldestFinishedAt = Long.MAX_VALUE;
+        Uri oldest = null;
+        for (Iterator<Map.Entry<Uri, Entry>> it = statusPublishers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Uri, Entry> mapEntry = it.next();
+            long finishedAt = mapEntry.getValue().finishedAt;
+            if (finishedAt == 0) {
+                continue;
+            }
+            if (now - finishedAt > FINISHED_TTL_MS) {
+                logger.debug("Evicting status of {}", mapEntry.getKey());
+                it.remove();
+                continue;
+            }
+            finished++;
+            if (finishedAt < oldestFinishedAt) {
+                oldestFinishedAt = finishedAt;
+                oldest = mapEntry.getKey();
+            }
+        }
+        // One at a time is enough, as it's called for every new one.
+        if (finished >= MAX_FINISHED && oldest != null) {
+            logger.debug("Evicting status of {}, too many finished", oldest);
+            statusPublishers.remove(oldest);
+        }
+    }
 
     /**
      * @return Status subject for this uri, or null if no.
      */
     @VisibleForTesting
     static BehaviorSubject<UploadStatus> getSubject(@Nonnull Uri filePath) {
-        return statusPublishers.get(filePath);
+        Entry entry = statusPublishers.get(filePath);
+        return entry == null ? null : entry.subject;
     }
 }
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import com.squareup.okhttp.MultipartBuilder;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import name.dlazerka.androidupload.Application;
+import name.dlazerka.androidupload.R;
+import rx.Observer;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_CONTENT_TYPE;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_DOWNSCALE_IMAGES;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_FINISHED_INTENT;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_GZIP;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_PARALLEL_CONNECTIONS;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_PROGRESS_INTENT;
+import static name.dlazerka.androidupload.upload.UploadService.EXTRA_RESUMABLE;
+
+/**
+ * Uploads one file, as requested by one {@link UploadService} intent.
+ * Many of these may run in parallel, so everything per-file lives here.
+ *
+ * Each file gets its own notification, posted by {@link UploadNotifier}.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadTask implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadTask.class);
+
+    private final Context context;
+    private final OkHttpClient uploadClient;
+    private final UploadNotifier notifier;
+    private final Scheduler statusScheduler;
+    /** For {@link DuplicateCheck}s. */
+    private final Executor checkExecutor;
+    private final UploadJournal journal;
+    private final UploadMetricsStore metricsStore;
+    private int attempt;
+    private UploadMetrics.Builder metrics;
+
+    private final Uri filePath;
+    private final String contentType;
+    private final boolean resumable;
+    private final boolean downscaleImages;
+    private final boolean gzip;
+    private final int parallelConnections;
+    private final Intent progressIntent;
+    private final Intent finishedIntent;
+    private final Observer<UploadStatus> statusObserver;
+    /** See {@link #prepare}. */
+    private boolean prepared;
+    /** What's actually uploaded, the downscaled image if it was. */
+    private File downscaled;
+    private String sourceContentType;
+    /** Progress goes from I/O threads through it, so that they never wait for subscribers or notifications. */
+    private LatestValueHandoff<UploadProgress> progressHandoff;
+
+    private final Action1<UploadProgress> progressAction = new Action1<UploadProgress>() {
+        @Override
+        public void call(UploadProgress progress) {
+            statusObserver.onNext(new UploadStatus(progress));
+            notifier.progress(filePath, progress);
+        }
+    };
+
+    /** Right on I/O thread, as it's cheap, and metrics are built there. */
+    private final Action1<UploadProgress> metricsAction = new Action1<UploadProgress>() {
+        @Override
+        public void call(UploadProgress progress) {
+            metrics.progress(progress);
+        }
+    };
+
+    public UploadTask(
+            @Nonnull Context context,
+            @Nonnull OkHttpClient uploadClient,
+            @Nonnull UploadNotifier notifier,
+            @Nonnull Scheduler statusScheduler,
+            @Nonnull Executor checkExecutor,
+            @Nonnull Intent intent
+    ) {
+        this.context = context;
+        this.uploadClient = uploadClient;
+        this.notifier = notifier;
+        this.statusScheduler = statusScheduler;
+        this.checkExecutor = checkExecutor;
+
+        filePath = checkNotNull(intent.getData());
+        Bundle extras = checkNotNull(intent.getExtras());
+        contentType = checkNotNull(extras.getString(EXTRA_CONTENT_TYPE));
+        progressIntent = (Intent) checkNotNull(extras.getParcelable(EXTRA_PROGRESS_INTENT));
+        finishedIntent = (Intent) checkNotNull(extras.getParcelable(EXTRA_FINISHED_INTENT));
+        parallelConnections = Math.max(1, extras.getInt(EXTRA_PARALLEL_CONNECTIONS, 1));
+        downscaleImages = extras.getBoolean(EXTRA_DOWNSCALE_IMAGES, false);
+        gzip = extras.getBoolean(EXTRA_GZIP, false) && UploadListeningBody.isCompressible(contentType);
+        // Compressed body is buffered to know its length, so only a chunk at a time.
+        resumable = extras.getBoolean(EXTRA_RESUMABLE, false) || parallelConnections > 1 || gzip;
+        sourceContentType = contentType;
+
+        statusObserver = UploadStatusObservables.getObserver(filePath);
+
+        journal = UploadJournal.get(context);
+        metricsStore = UploadMetricsStore.get(context);
+    }
+
+    public Uri getFilePath() {
+        return filePath;
+    }
+
+    /** @return Content type of what's uploaded, that of downscaled image if it was. */
+    public String getContentType() {
+        return sourceContentType;
+    }
+
+    /** Whether it may go in one request with other files, see {@link UploadBatch}. */
+    public boolean isBatchable() {
+        return !resumable;
+    }
+
+    /**
+     * Downscales image, if asked to, so that size and content are of what's going to be uploaded.
+     * Never fails, if it can't be done, the original is uploaded. Done once, on I/O thread.
+     */
+    public void prepare() {
+        if (prepared) {
+            return;
+        }
+        prepared = true;
+        if (!downscaleImages || !contentType.startsWith("image/")) {
+            return;
+        }
+        Resources resources = context.getResources();
+        ImageDownscaler downscaler = new ImageDownscaler(
+                context,
+                resources.getInteger(R.integer.image_max_dimension),
+                resources.getInteger(R.integer.image_quality));
+        try {
+            downscaled = downscaler.downscale(filePath);
+        } catch (IOException e) {
+            // Including a missing file, that's for open() to tell.
+            logger.warn("Cannot downscale {}, uploading original: {}", filePath, e.getMessage());
+        }
+        if (downscaled != null) {
+            sourceContentType = ImageDownscaler.CONTENT_TYPE;
+        }
+    }
+
+    /** @return Size of what's uploaded, or -1 if unknown. */
+    public long getSize() {
+        if (downscaled != null) {
+            return downscaled.length();
+        }
+        try {
+            ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(filePath, "r");
+            if (fd == null) {
+                return -1;
+            }
+            long size = fd.getStatSize();
+            fd.close();
+            return size;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void run() {
+        prepare();
+        begin();
+        try {
+            uploadFile();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            end();
+        }
+    }
+
+    /** Counts the attempt, and shows it's started. Then {@link #finish} or {@link #fail}, and {@link #end} anyway. */
+    void begin() {
+        attempt = journal.recordAttempt(filePath);
+        logger.info("Uploading {} {}, attempt {}", contentType, filePath, attempt);
+        metrics = new UploadMetrics.Builder(filePath, attempt);
+        progressHandoff = new LatestValueHandoff<>(statusScheduler.createWorker(), progressAction);
+
+        // Notifier is used on status thread only.
+        progressHandoff.post(new Action0() {
+            @Override
+            public void call() {
+                notifier.started(filePath, progressIntent);
+            }
+        });
+    }
+
+    /** Publishes the response. Caller closes its body. */
+    void finish(Response response) {
+        final boolean retrying =
+                isRetryable(response) && new UploadScheduler(context).scheduleRetry(filePath, attempt);
+        if (!retrying) {
+            journal.remove(filePath);
+        }
+        // Keep it otherwise, so that retry uploads the very same bytes.
+        if (response.isSuccessful() && downscaled != null && !downscaled.delete()) {
+            logger.warn("Cannot delete {}", downscaled);
+        }
+
+        metricsStore.record(metrics.build(response.code()));
+        final UploadStatus status = new UploadStatus(response);
+        progressHandoff.post(new Action0() {
+            @Override
+            public void call() {
+                // Had we call onCompleted(), then UploadActivity might never had a chance to get Response.
+                statusObserver.onNext(status);
+                if (status.isSuccessful()) {
+                    notifier.finished(filePath, finishedIntent);
+                } else {
+                    notifier.failed(filePath, retrying);
+                }
+            }
+        });
+    }
+
+    void fail(IOException e) {
+        logger.warn("IOException: {}", e.getMessage(), e);
+        if (!new UploadScheduler(context).scheduleRetry(filePath, attempt)) {
+            giveUp(e);
+            return;
+        }
+        // Kept in journal, to be retried.
+        publishError(e, true);
+    }
+
+    /** Upload can never succeed, e.g. file was deleted, or permission to read it was revoked. */
+    void giveUp(Exception e) {
+        logger.warn("Giving up on {}: {}", filePath, e.toString());
+        journal.remove(filePath);
+        publishError(e, false);
+    }
+
+    private void publishError(final Exception e, final boolean retrying) {
+        metricsStore.record(metrics.build(e));
+        progressHandoff.post(new Action0() {
+            @Override
+            public void call() {
+                statusObserver.onError(e);
+                notifier.failed(filePath, retrying);
+            }
+        });
+    }
+
+    void end() {
+        progressHandoff.stop();
+    }
+
+    /**
+     * @return Descriptor of the file to upload. Null if it's gone or can't be read, then upload is given up,
+     * see {@link #giveUp}, and caller only has to {@link #end} it.
+     * @throws IOException if downscaled image can't be read, that's for a retry to downscale again.
+     */
+    @Nullable
+    ParcelFileDescriptor open() throws IOException {
+        if (downscaled != null) {
+            return ParcelFileDescriptor.open(downscaled, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        ParcelFileDescriptor fd;
+        try {
+            fd = context.getContentResolver().openFileDescriptor(filePath, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            giveUp(e);
+            return null;
+        }
+        if (fd == null) {
+            giveUp(new FileNotFoundException("No descriptor for " + filePath));
+        }
+        return fd;
+    }
+
+    /** @return Progress counter of this file, publishing to its status and notification. */
+    UploadProgressSampler newProgressSampler(long size) {
+        Resources resources = context.getResources();
+        UploadProgressSampler progress = new UploadProgressSampler(
+                size,
+                resources.getInteger(R.integer.progress_interval_ms),
+                resources.getInteger(R.integer.progress_step_percent) / 100f);
+        progress.getObservable().subscribe(metricsAction);
+        progress.getObservable().subscribe(progressHandoff);
+        metrics.sampler(progress);
+        return progress;
+    }
+
+    UploadMetrics.Builder getMetrics() {
+        return metrics;
+    }
+
+    String getFileName() {
+        List<String> pathSegments = filePath.getPathSegments();
+        return pathSegments.get(pathSegments.size() - 1);
+    }
+
+    private void uploadFile() throws IOException {
+        ParcelFileDescriptor fd = open();
+        if (fd == null) {
+            return;
+        }
+
+        try {
+            long size = fd.getStatSize();
+            UploadProgressSampler progress = newProgressSampler(size);
+            Response response;
+            if (size >= 0 && size <= context.getResources().getInteger(R.integer.duplicate_check_max_bytes)) {
+                response = uploadUnlessDuplicate(fd, progress);
+                if (response == null) {
+                    // Backend had it when checked, but not when recorded, e.g. it was deleted meanwhile.
+                    // Chunked upload resumes its session, and counts what server has as transferred again.
+                    logger.info("Duplicate of {} is gone from backend, uploading it after all", filePath);
+                    progress.restart();
+                    response = upload(fd, progress);
+                }
+            } else {
+                response = upload(fd, progress);
+            }
+
+            finish(response);
+            // Status keeps just the status line, let connection go back to pool.
+            response.body().close();
+        } finally {
+            fd.close();
+        }
+    }
+
+    private Response upload(ParcelFileDescriptor fd, UploadProgressSampler progress) throws IOException {
+        Response response = resumable
+                ? uploadChunked(fd, sourceContentType, progress)
+                : uploadWhole(fd, sourceContentType, progress);
+        metrics.responseReceived();
+        return response;
+    }
+
+    /**
+     * Uploads, while {@link DuplicateCheck} finds out whether backend has the same content already.
+     * It reads the file once more, so that's only for files up to R.integer.duplicate_check_max_bytes.
+     * @return Response of the upload, or of recording the existing content. Null if backend had the same
+     * content, but no longer has it, so the file is still to be uploaded.
+     */
+    @Nullable
+    private Response uploadUnlessDuplicate(ParcelFileDescriptor fd, UploadProgressSampler progress)
+            throws IOException {
+        // Runs alongside the upload, and cancels it if backend already has the same content.
+        DuplicateCheck duplicateCheck = new DuplicateCheck(
+                Application.okHttpClient,
+                uploadClient,
+                context.getResources().getString(R.string.upload_by_hash_url),
+                fd,
+                filePath);
+        duplicateCheck.start(checkExecutor);
+        try {
+            return upload(fd, progress);
+        } catch (IOException e) {
+            if (!duplicateCheck.isDuplicate()) {
+                throw e;
+            }
+        } finally {
+            duplicateCheck.stop();
+        }
+
+        Response response = duplicateCheck.record(sourceContentType);
+        if (response.code() == 404) {
+            response.body().close();
+            return null;
+        }
+        logger.info("Skipped upload of {}, backend already has it", filePath);
+        metrics.duplicate();
+        return response;
+    }
+
+    /** Server errors and throttling are worth retrying, other client errors would only repeat. */
+    static boolean isRetryable(Response response) {
+        int code = response.code();
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    private Response uploadWhole(ParcelFileDescriptor fd, String contentType, UploadProgressSampler progress)
+            throws IOException {
+        long takingUrlAt = SystemClock.uptimeMillis();
+        String uploadUrl = UploadUrlPool.get(context).take();
+        metrics.urlFetched(takingUrlAt);
+
+        String fileName = getFileName();
+
+        UploadListeningBody body = new UploadListeningBody(fd, contentType, progress);
+
+        RequestBody requestBody = new MultipartBuilder()
+                .addFormDataPart(Application.UPLOAD_FORM_PARAM, fileName, body)
+                .build();
+
+        Request request = new Request.Builder()
+                .url(uploadUrl)
+                .tag(filePath)
+                .post(requestBody)
+                .build();
+
+        return uploadClient.newCall(request).execute();
+    }
+
+    private Response uploadChunked(ParcelFileDescriptor fd, String contentType, UploadProgressSampler progress)
+            throws IOException {
+        metrics.chunked();
+        String uploadUrl = context.getResources().getString(R.string.chunked_upload_url);
+        ChunkedUploader uploader = new ChunkedUploader(
+                context, uploadClient, uploadUrl, filePath, contentType, parallelConnections, gzip);
+        return uploader.upload(fd, progress);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.upload;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import name.dlazerka.androidupload.Application;
+import name.dlazerka.androidupload.R;
+
+/**
+ * Blobstore upload URLs, fetched from GetUploadUrlServlet several at a time, so that only the first upload
+ * of a batch pays for the extra round-trip, and the rest start right away. And UploadService {@link #prefetch}es
+ * them while it prepares the first upload, so that one usually doesn't pay either.
+ *
+ * Each URL is single-use, and expires on server in 10 minutes, so it's dropped a little earlier,
+ * after R.integer.upload_url_ttl_ms. Pool is locked by itself, and never while fetching.
+ * Compressed uploads don't go through Blobstore, see {@link UploadListeningBody}, so URLs are all plain.
+ *
+ * @author Dzmitry Lazerka
+ */
+class UploadUrlPool {
+    private static final Logger logger = LoggerFactory.getLogger(UploadUrlPool.class);
+
+    private static UploadUrlPool instance;
+
+    private final String getUploadUrl;
+    private final int batchSize;
+    private final long ttlMs;
+
+    private final Pool pool = new Pool();
+
+    private static class PooledUrl {
+        final String url;
+        final long expiresAt;
+
+        PooledUrl(String url, long expiresAt) {
+            this.url = url;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** URLs, and whether some thread is fetching more of them. */
+    private static class Pool {
+        /** Guarded by this. */
+        private final Deque<PooledUrl> urls = new ArrayDeque<>();
+        /** Guarded by this. */
+        private boolean fetching;
+
+        /** @return Fresh URL, dropping expired ones, or null if none left. */
+        @Nullable
+        synchronized String poll() {
+            long now = SystemClock.elapsedRealtime();
+            PooledUrl pooled;
+            while ((pooled = urls.poll()) != null) {
+                if (pooled.expiresAt > now) {
+                    return pooled.url;
+                }
+            }
+            return null;
+        }
+
+        /** @return Whether caller is to fetch, false if another thread does, or there are URLs already. */
+        synchronized boolean startFetching() {
+            if (fetching || !urls.isEmpty()) {
+                return false;
+            }
+            fetching = true;
+            return true;
+        }
+
+        /** @param fetched null if fetch has failed. */
+        synchronized void fetched(@Nullable List<PooledUrl> fetched) {
+            if (fetched != null) {
+                urls.addAll(fetched);
+            }
+            fetching = false;
+            notifyAll();
+        }
+
+        /** Until another thread has fetched, or failed to. */
+        synchronized void awaitFetched() throws InterruptedIOException {
+            while (fetching) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for upload URLs");
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    public static synchronized UploadUrlPool get(@Nonnull Context context) {
+        if (instance == null) {
+            Resources resources = context.getResources();
+            instance = new UploadUrlPool(
+                    resources.getString(R.string.get_upload_url),
+                    resources.getInteger(R.integer.upload_url_batch),
+                    resources.getInteger(R.integer.upload_url_ttl_ms));
+        }
+        return instance;
+    }
+
+    private UploadUrlPool(String getUploadUrl, int batchSize, long ttlMs) {
+        this.getUploadUrl = getUploadUrl;
+        this.batchSize = batchSize;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return Fresh upload URL, fetching a batch of them if none left.
+     */
+    @Nonnull
+    public String take() throws IOException {
+        while (true) {
+            String url = pool.poll();
+            if (url != null) {
+                return url;
+            }
+            if (pool.startFetching()) {
+                break;
+            }
+            // Others wait meanwhile, and get the rest of the batch instead of fetching their own.
+            pool.awaitFetched();
+        }
+
+        List<PooledUrl> fetched = null;
+        try {
+            fetched = fetch();
+            return fetched.remove(0).url;
+        } finally {
+            pool.fetched(fetched);
+        }
+    }
+
+    /**
+     * Fetches upload URLs in background, unless there are some already. Doesn't block.
+     */
+    public void prefetch() {
+        if (!pool.startFetching()) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<PooledUrl> fetched = null;
+                try {
+                    fetched = fetch();
+                } catch (IOException e) {
+                    // Nothing bad, first upload will fetch them.
+                    logger.debug("Cannot prefetch upload URLs: {}", e.getMessage());
+                } finally {
+                    pool.fetched(fetched);
+                }
+            }
+        }, "UploadUrlPool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Nonnull
+    private List<PooledUrl> fetch() throws IOException {
+        HttpUrl url = HttpUrl.parse(getUploadUrl).newBuilder()
+                .addQueryParameter("count", String.valueOf(batchSize))
+                .build();
+        Request request = new Request.Builder().url(url).build();
+        // Server's clock starts before response comes, so count from the request.
+        long expiresAt = SystemClock.elapsedRealtime() + ttlMs;
+        Response response = Application.okHttpClient.newCall(request).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("Cannot get upload URLs: " + response.code() + " " + response.message());
+        }
+
+        List<PooledUrl> result = new ArrayList<>(batchSize);
+        for (String line : response.body().string().split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                result.add(new PooledUrl(line, expiresAt));
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("No upload URLs in response");
+        }
+        logger.debug("Fetched {} upload URLs", result.size());
+        return result;
+    }
+}
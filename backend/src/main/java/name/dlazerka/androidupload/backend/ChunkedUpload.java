@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.condition.IfNotNull;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumable upload session. Its bytes are stored as {@link UploadChunk}s until completed, then assembled into
+ * a Cloud Storage object, see {@link UploadedFile#getBlobKey()}.
+ *
+ * Which chunks have been received is not kept here, so that chunks are stored without touching the session.
+ * Sessions that don't complete in {@link #EXPIRATION_MS} are deleted by {@link CleanupChunkedUploadsServlet}.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Entity
+public class ChunkedUpload {
+    static final long EXPIRATION_MS = TimeUnit.DAYS.toMillis(1);
+
+    @Id
+    private Long id;
+
+    private String contentType;
+    private String fileName;
+    private long length;
+    private int chunkSize;
+    private String ip;
+
+    @Index
+    private Date createdAt;
+    private Date completedAt;
+    /** Null once completed, so that only abandoned sessions are found by it. */
+    @Index(IfNotNull.class)
+    private Date expiresAt;
+
+    private ChunkedUpload() {}
+
+    public ChunkedUpload(String contentType, String fileName, long length, int chunkSize, String ip) {
+        this.contentType = contentType;
+        this.fileName = fileName;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.ip = ip;
+        this.createdAt = new Date();
+        this.expiresAt = new Date(createdAt.getTime() + EXPIRATION_MS);
+    }
+
+    /** @return Expected length of chunk starting at given offset, or -1 if offset is not a chunk boundary. */
+    public long getChunkLength(long offset) {
+        if (offset < 0 || offset >= length || offset % chunkSize != 0) {
+            return -1;
+        }
+        return Math.min(chunkSize, length - offset);
+    }
+
+    /** @return Offsets of all the chunks, in order. */
+    public List<Long> getChunkOffsets() {
+        List<Long> result = new ArrayList<>();
+        for (long offset = 0; offset < length; offset += chunkSize) {
+            result.add(offset);
+        }
+        return result;
+    }
+
+    /** @return Whether it was abandoned, and doesn't accept chunks anymore. Completed ones never expire. */
+    public boolean isExpired(Date now) {
+        return expiresAt != null && expiresAt.before(now);
+    }
+
+    public void markCompleted() {
+        completedAt = new Date();
+        expiresAt = null;
+    }
+
+    public boolean isCompleted() {
+        return completedAt != null;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public Date getCompletedAt() {
+        return completedAt;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+}
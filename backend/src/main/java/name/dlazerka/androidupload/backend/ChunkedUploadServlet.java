@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.inject.Singleton;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Resumable upload in fixed-size chunks, for clients on flaky networks.
+ *
+ * <ul>
+ *     <li>POST with X-Upload-Content-Type, X-Upload-Content-Length, X-Upload-Chunk-Size headers
+ *     creates a session, and responds with its id.</li>
+ *     <li>PUT ?id=... with "Content-Range: bytes first-last/length" stores one chunk.
+ *     Chunks may come in any order, and even in parallel. "Content-Encoding: gzip" is supported.</li>
+ *     <li>GET ?id=... reports which byte ranges we already have.</li>
+ *     <li>POST ?id=... completes the upload, once all the chunks are there. Responds 409 if some are missing,
+ *     then client should GET the ranges, and send the missing ones.</li>
+ * </ul>
+ *
+ * PUT and GET both respond with "Range: bytes=0-999,2000-2999" header (inclusive, same as in Content-Range),
+ * missing if nothing has been received yet. PUT reports just the chunk it has stored.
+ * GET is eventually consistent, and may miss chunks stored just now, sending them again is harmless.
+ *
+ * Chunks are stored without touching the session, so parallel ones don't contend. On completion they're
+ * assembled into a Cloud Storage object, its MD5 computed on the way, and an {@link Upload} is saved.
+ * An empty file is complete right at creation.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class ChunkedUploadServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadServlet.class);
+
+    /** Chunk must fit into a single datastore entity. */
+    static final int MAX_CHUNK_SIZE = 1000_000;
+
+    /** Chunks loaded at once while assembling, bounds memory to this many {@link #MAX_CHUNK_SIZE}. */
+    static final int ASSEMBLE_BATCH = 8;
+
+    /** Prefix of assembled objects in app's default bucket. */
+    static final String OBJECT_PREFIX = "chunked-uploads/";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (req.getParameter("id") != null) {
+            ChunkedUpload upload = loadUpload(req, resp);
+            if (upload != null) {
+                complete(upload, req, resp);
+            }
+            return;
+        }
+
+        String contentType = req.getHeader("X-Upload-Content-Type");
+        long length;
+        int chunkSize;
+        try {
+            length = Long.parseLong(req.getHeader("X-Upload-Content-Length"));
+            chunkSize = Integer.parseInt(req.getHeader("X-Upload-Chunk-Size"));
+        } catch (NumberFormatException e) {
+            resp.sendError(400, "Bad X-Upload-Content-Length or X-Upload-Chunk-Size");
+            return;
+        }
+        if (contentType == null || length < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            resp.sendError(400, "Bad upload parameters");
+            return;
+        }
+
+        ChunkedUpload upload = new ChunkedUpload(
+                contentType, req.getHeader("X-Upload-File-Name"), length, chunkSize, req.getRemoteAddr());
+        ofy().save().entity(upload).now();
+
+        logger.info("Created chunked upload {} of {} bytes", upload.getId(), length);
+
+        if (length == 0) {
+            // Empty file, there will be no chunks.
+            complete(upload, req, resp);
+            return;
+        }
+
+        resp.setContentType("text/plain");
+        resp.getWriter().write(String.valueOf(upload.getId()));
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        ChunkedUpload upload = loadUpload(req, resp);
+        if (upload == null) {
+            return;
+        }
+        if (upload.isCompleted()) {
+            // Retried chunk of a complete upload, nothing to store.
+            writeRanges(allRanges(upload), resp);
+            return;
+        }
+
+        String contentRange = req.getHeader("Content-Range");
+        Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (matcher == null || !matcher.matches()) {
+            resp.sendError(400, "Bad Content-Range: " + contentRange);
+            return;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long last = Long.parseLong(matcher.group(2));
+        long total = Long.parseLong(matcher.group(3));
+        long expectedLength = upload.getChunkLength(first);
+        if (total != upload.getLength() || expectedLength == -1 || last - first + 1 != expectedLength) {
+            resp.sendError(416, "Content-Range doesn't match chunk boundaries: " + contentRange);
+            return;
+        }
+
+        InputStream in = req.getInputStream();
+        if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+            // We store decompressed chunks, Content-Range is of decompressed bytes too.
+            in = new GZIPInputStream(in);
+        }
+        byte[] data = readFully(in, (int) expectedLength);
+        if (data == null) {
+            resp.sendError(400, "Body length doesn't match Content-Range");
+            return;
+        }
+
+        // No transaction: if the session expires meanwhile, the chunk is left for cleanup.
+        ofy().save().entity(new UploadChunk(upload.getId(), first, data)).now();
+
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{first, last});
+        writeRanges(ranges, resp);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        ChunkedUpload upload = loadUpload(req, resp);
+        if (upload == null) {
+            return;
+        }
+        writeRanges(upload.isCompleted() ? allRanges(upload) : getReceived(upload), resp);
+    }
+
+    /** @return Session, or null if there's no such one accepting chunks, then response is already sent. */
+    private ChunkedUpload loadUpload(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long id;
+        try {
+            id = Long.parseLong(req.getParameter("id"));
+        } catch (NumberFormatException e) {
+            resp.sendError(400, "Bad id");
+            return null;
+        }
+        ChunkedUpload upload = ofy().load().type(ChunkedUpload.class).id(id).now();
+        if (upload == null || upload.isExpired(new Date())) {
+            resp.sendError(404, "No such upload");
+            return null;
+        }
+        return upload;
+    }
+
+    /** @return null if stream has more or less than expected bytes. */
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] result = new byte[length];
+        int read = 0;
+        int n;
+        while (read < length && (n = in.read(result, read, length - read)) != -1) {
+            read += n;
+        }
+        if (read != length || in.read() != -1) {
+            return null;
+        }
+        return result;
+    }
+
+    /** @return Merged ranges of chunks stored so far, by a keys-only query over the session's chunks. */
+    private static List<long[]> getReceived(ChunkedUpload upload) {
+        List<Key<UploadChunk>> keys = ofy().load().type(UploadChunk.class)
+                .filterKey(">=", UploadChunk.firstKey(upload.getId()))
+                .filterKey("<", UploadChunk.lastKey(upload.getId()))
+                .keys()
+                .list();
+        List<Long> offsets = new ArrayList<>();
+        for (Key<UploadChunk> key : keys) {
+            offsets.add(UploadChunk.getOffset(key));
+        }
+        // Keys are ordered as strings, "10" before "9".
+        Collections.sort(offsets);
+
+        List<long[]> result = new ArrayList<>();
+        for (long offset : offsets) {
+            long last = offset + upload.getChunkLength(offset) - 1;
+            long[] previous = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (previous != null && previous[1] + 1 == offset) {
+                previous[1] = last;
+            } else {
+                result.add(new long[]{offset, last});
+            }
+        }
+        return result;
+    }
+
+    private static List<long[]> allRanges(ChunkedUpload upload) {
+        List<long[]> result = new ArrayList<>();
+        if (upload.getLength() > 0) {
+            result.add(new long[]{0, upload.getLength() - 1});
+        }
+        return result;
+    }
+
+    /**
+     * Assembles the chunks, and saves the {@link Upload}. Client may retry it concurrently, then both assemble
+     * the same object, and only the first one saves the Upload.
+     */
+    private static void complete(
+            final ChunkedUpload upload,
+            HttpServletRequest req,
+            HttpServletResponse resp
+    ) throws IOException {
+        if (!upload.isCompleted()) {
+            final UploadedFile file = assemble(upload);
+            if (file == null) {
+                resp.sendError(409, "Not all chunks received");
+                return;
+            }
+
+            final Key<ChunkedUpload> uploadKey = Key.create(upload);
+            final Map<String, List<String>> headers = UploadedCallbackServlet.getHeaders(req);
+            final String ip = req.getRemoteAddr();
+            boolean completed = ofy().transact(new Work<Boolean>() {
+                @Override
+                public Boolean run() {
+                    ChunkedUpload current = ofy().load().key(uploadKey).now();
+                    if (current == null || current.isExpired(new Date())) {
+                        return false;
+                    }
+                    if (!current.isCompleted()) {
+                        current.markCompleted();
+                        Upload result = new Upload(uploadKey, file, headers, ip);
+                        ofy().save().entities(current, result).now();
+                        logger.info("Completed chunked upload {}", uploadKey.getId());
+                    }
+                    return true;
+                }
+            });
+            if (!completed) {
+                resp.sendError(404, "No such upload");
+                return;
+            }
+
+            List<Key<UploadChunk>> chunkKeys = new ArrayList<>();
+            for (long offset : upload.getChunkOffsets()) {
+                chunkKeys.add(UploadChunk.key(upload.getId(), offset));
+            }
+            ofy().delete().keys(chunkKeys).now();
+        }
+
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        resp.getWriter().write(String.valueOf(upload.getId()));
+    }
+
+    /**
+     * Writes chunks in order into a Cloud Storage object, a few at a time, computing MD5 on the way.
+     *
+     * @return File pointing to the object, or null if some chunk is missing, then the object is deleted.
+     */
+    static UploadedFile assemble(ChunkedUpload upload) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        String bucket = AppIdentityServiceFactory.getAppIdentityService().getDefaultGcsBucketName();
+        GcsFilename fileName = new GcsFilename(bucket, OBJECT_PREFIX + upload.getId());
+        GcsService gcs = GcsServiceFactory.createGcsService();
+        GcsOutputChannel out = gcs.createOrReplace(
+                fileName, new GcsFileOptions.Builder().mimeType(upload.getContentType()).build());
+
+        List<Long> offsets = upload.getChunkOffsets();
+        for (int i = 0; i < offsets.size(); i += ASSEMBLE_BATCH) {
+            List<Key<UploadChunk>> keys = new ArrayList<>();
+            for (long offset : offsets.subList(i, Math.min(i + ASSEMBLE_BATCH, offsets.size()))) {
+                keys.add(UploadChunk.key(upload.getId(), offset));
+            }
+            Map<Key<UploadChunk>, UploadChunk> chunks = ofy().load().keys(keys);
+            for (Key<UploadChunk> key : keys) {
+                UploadChunk chunk = chunks.get(key);
+                if (chunk == null) {
+                    logger.info("Chunked upload {} misses chunk at {}", upload.getId(), UploadChunk.getOffset(key));
+                    out.close();
+                    gcs.delete(fileName);
+                    return null;
+                }
+                byte[] data = chunk.getData();
+                md5.update(data);
+                out.write(ByteBuffer.wrap(data));
+            }
+            // Assembled chunks are not needed in session cache.
+            ofy().clear();
+        }
+        out.close();
+
+        BlobKey blobKey = BlobstoreServiceFactory.getBlobstoreService()
+                .createGsBlobKey("/gs/" + fileName.getBucketName() + "/" + fileName.getObjectName());
+        return UploadedFile.of(upload, blobKey, toHex(md5.digest()));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeRanges(List<long[]> ranges, HttpServletResponse resp) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (long[] range : ranges) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(range[0]).append('-').append(range[1]);
+        }
+        if (sb.length() > 0) {
+            resp.setHeader("Range", "bytes=" + sb);
+        }
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        resp.getWriter().write(sb.toString());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Singleton;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Deletes {@link ChunkedUpload} sessions that have expired without completing, and {@link UploadChunk}s
+ * that were never assembled. Run by cron, see cron.xml.
+ *
+ * Chunks are not children of sessions, so they're found by age: no session accepts chunks longer than
+ * {@link ChunkedUpload#EXPIRATION_MS}, so an older chunk belongs to an expired or a completed one.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class CleanupChunkedUploadsServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(CleanupChunkedUploadsServlet.class);
+
+    /** Keys per query. */
+    static final int PAGE_SIZE = 500;
+    /** Leave the rest to the next run, well before cron request deadline. */
+    static final long MAX_RUN_MS = 60_000;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long startedAt = System.currentTimeMillis();
+        Date now = new Date(startedAt);
+        int sessions = 0;
+        List<Key<ChunkedUpload>> page;
+        do {
+            page = ofy().load().type(ChunkedUpload.class)
+                    .filter("expiresAt <", now)
+                    .limit(PAGE_SIZE)
+                    .keys()
+                    .list();
+            for (Key<ChunkedUpload> uploadKey : page) {
+                if (deleteIfExpired(uploadKey, now)) {
+                    sessions++;
+                }
+            }
+        } while (page.size() == PAGE_SIZE && System.currentTimeMillis() - startedAt < MAX_RUN_MS);
+
+        Date chunksBefore = new Date(startedAt - ChunkedUpload.EXPIRATION_MS);
+        int chunks = 0;
+        List<Key<UploadChunk>> chunkPage;
+        do {
+            chunkPage = ofy().load().type(UploadChunk.class)
+                    .filter("savedAt <", chunksBefore)
+                    .limit(PAGE_SIZE)
+                    .keys()
+                    .list();
+            ofy().delete().keys(chunkPage).now();
+            chunks += chunkPage.size();
+        } while (chunkPage.size() == PAGE_SIZE && System.currentTimeMillis() - startedAt < MAX_RUN_MS);
+
+        logger.info("Deleted {} expired chunked uploads, {} chunks", sessions, chunks);
+
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        resp.getWriter().write(String.valueOf(sessions));
+    }
+
+    /**
+     * Query is eventually consistent, so it may return a session that has just completed. Checked again
+     * in a transaction, so that completion either comes first, or finds no session.
+     */
+    private static boolean deleteIfExpired(final Key<ChunkedUpload> uploadKey, final Date now) {
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                ChunkedUpload upload = ofy().load().key(uploadKey).now();
+                if (upload == null || upload.getExpiresAt() == null || !upload.getExpiresAt().before(now)) {
+                    return false;
+                }
+                ofy().delete().key(uploadKey).now();
+                return true;
+            }
+        });
+    }
+}
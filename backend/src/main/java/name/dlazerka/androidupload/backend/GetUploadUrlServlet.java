@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -30,13 +31,37 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
+ * Returns Blobstore upload URL, or several of them, one per line, if `count` parameter is given.
+ * Each URL is good for one upload, and expires in 10 minutes.
+ *
  * @author Dzmitry Lazerka
  */
 @Singleton
 public class GetUploadUrlServlet extends HttpServlet {
+    static final String COUNT_PARAM = "count";
+    static final int MAX_COUNT = 20;
+
+    private final Metrics.Counter requests;
+    private final Metrics.Histogram latency;
+
+    @Inject
+    public GetUploadUrlServlet(Metrics metrics) {
+        this.requests = metrics.counter("get_upload_url_requests_total");
+        this.latency = metrics.histogram("get_upload_url_latency_ms");
+    }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long startedAt = System.nanoTime();
+        requests.increment();
+        try {
+            getUploadUrls(req, resp);
+        } finally {
+            latency.recordSince(startedAt);
+        }
+    }
+
+    private void getUploadUrls(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
 
         URI uri;
@@ -49,8 +74,32 @@ public class GetUploadUrlServlet extends HttpServlet {
         // Make callback URL relative to
         String callbackUrl = uri.resolve(ServletContextListener.BLOB_UPLOADED_CALLBACK).toString();
 
-        String uploadUrl = blobstoreService.createUploadUrl(callbackUrl);
+        // Blobstore stores what it gets, so let callback know that the blob is compressed.
+        if ("gzip".equals(req.getParameter(UploadedCallbackServlet.CONTENT_ENCODING_PARAM))) {
+            callbackUrl += "?" + UploadedCallbackServlet.CONTENT_ENCODING_PARAM + "=gzip";
+        }
+
+        int count;
+        try {
+            String countParam = req.getParameter(COUNT_PARAM);
+            count = countParam == null ? 1 : Integer.parseInt(countParam);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + COUNT_PARAM);
+            return;
+        }
+        if (count < 1 || count > MAX_COUNT) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, COUNT_PARAM + " must be in 1.." + MAX_COUNT);
+            return;
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(blobstoreService.createUploadUrl(callbackUrl));
+        }
         resp.addHeader("Content-Type", "text/plain");
-        resp.getWriter().write(uploadUrl);
+        resp.getWriter().write(result.toString());
     }
 }
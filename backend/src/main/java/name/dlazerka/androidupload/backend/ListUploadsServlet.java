@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+
+import javax.inject.Singleton;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Lists {@link Upload}s, newest first, a page at a time.
+ *
+ * Parameters, all optional:
+ * <ul>
+ *     <li>ip: only uploads from this address.</li>
+ *     <li>from, to: savedAt range in millis since epoch, from inclusive, to exclusive.</li>
+ *     <li>limit: page size, up to {@value #MAX_LIMIT}, default {@value #DEFAULT_LIMIT}.</li>
+ *     <li>cursor: as returned in X-Next-Cursor header of the previous page.</li>
+ *     <li>projection=true: only id, savedAt and ip, served from the index without loading entities.</li>
+ * </ul>
+ *
+ * Responds with tab-separated lines: id, savedAt millis, ip, then (unless projection) country, user agent,
+ * and name:size of each file. X-Next-Cursor header is missing on the last page.
+ *
+ * Pages are cursor-based, not offset-based, so every page costs the same no matter how deep it is.
+ * Filtering by ip together with a date range needs the composite index from datastore-indexes.xml.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class ListUploadsServlet extends HttpServlet {
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String ip = req.getParameter("ip");
+        boolean projection = Boolean.parseBoolean(req.getParameter("projection"));
+
+        Query<Upload> query = ofy().load().type(Upload.class);
+        int limit;
+        try {
+            if (ip != null) {
+                query = query.filter("ip", ip);
+            }
+            String from = req.getParameter("from");
+            if (from != null) {
+                query = query.filter("savedAt >=", new Date(Long.parseLong(from)));
+            }
+            String to = req.getParameter("to");
+            if (to != null) {
+                query = query.filter("savedAt <", new Date(Long.parseLong(to)));
+            }
+            String limitParam = req.getParameter("limit");
+            limit = limitParam == null ? DEFAULT_LIMIT : Integer.parseInt(limitParam);
+            String cursor = req.getParameter("cursor");
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+        } catch (IllegalArgumentException e) {
+            // Including NumberFormatException.
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be in 1.." + MAX_LIMIT);
+            return;
+        }
+
+        query = query.order("-savedAt").limit(limit);
+        if (projection) {
+            // Datastore doesn't allow projecting a property that has an equality filter on it.
+            query = ip == null ? query.project("savedAt", "ip") : query.project("savedAt");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        QueryResultIterator<Upload> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            Upload upload = iterator.next();
+            count++;
+            sb.append(upload.getId())
+                    .append('\t').append(upload.getSavedAt().getTime())
+                    .append('\t').append(ip == null ? upload.getIp() : ip);
+            if (!projection) {
+                sb.append('\t').append(upload.getCountry())
+                        .append('\t').append(upload.getUserAgent());
+                if (upload.getFiles() != null) {
+                    for (UploadedFile file : upload.getFiles()) {
+                        sb.append('\t').append(file.getFileName()).append(':').append(file.getSize());
+                    }
+                }
+            }
+            sb.append('\n');
+        }
+
+        if (count == limit) {
+            resp.setHeader("X-Next-Cursor", iterator.getCursor().toWebSafeString());
+        }
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        PrintWriter writer = resp.getWriter();
+        writer.write(sb.toString());
+    }
+}
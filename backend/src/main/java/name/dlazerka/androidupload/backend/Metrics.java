@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Singleton;
+
+/**
+ * Counters and latency histograms of this instance, exported by {@link MetricsServlet}.
+ *
+ * Recording is a couple of atomic increments, no locks, so it's fine on every request.
+ * Only registration (once per servlet) and export are synchronized.
+ *
+ * Values live in memory of one instance and start from zero when it starts, as scrapers expect of counters.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class Metrics {
+    /** Upper bounds of histogram buckets, in milliseconds. Last bucket is everything above. */
+    static final long[] LATENCY_BUCKETS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /** Guarded by this. Insertion-ordered, so that export is stable. */
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    private interface Metric {
+        void write(String name, StringBuilder out);
+    }
+
+    public static class Counter implements Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    public static class Histogram implements Metric {
+        /** Per bucket, not cumulative, so that recording touches one bucket only. */
+        private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+        private final AtomicLong sum = new AtomicLong();
+
+        public void record(long ms) {
+            int i = 0;
+            while (i < LATENCY_BUCKETS_MS.length && ms > LATENCY_BUCKETS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sum.addAndGet(ms);
+        }
+
+        /** @param startedAt {@link System#nanoTime()} at start. */
+        public void recordSince(long startedAt) {
+            record((System.nanoTime() - startedAt) / 1000000);
+        }
+
+        /**
+         * Buckets are read one by one while others may be recording, so a scrape may be off by
+         * the requests in flight, which is fine for monitoring.
+         */
+        @Override
+        public void write(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+                cumulative += buckets.get(i);
+                out.append(name).append("_bucket{le=\"").append(LATENCY_BUCKETS_MS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += buckets.get(LATENCY_BUCKETS_MS.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(sum.get()).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /** @return Counter by this name, created if there's none. */
+    public synchronized Counter counter(String name) {
+        return get(name, Counter.class);
+    }
+
+    /** @return Histogram of milliseconds by this name, created if there's none. */
+    public synchronized Histogram histogram(String name) {
+        return get(name, Histogram.class);
+    }
+
+    private <T extends Metric> T get(String name, Class<T> type) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = type == Counter.class ? new Counter() : new Histogram();
+            metrics.put(name, metric);
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /** @return All metrics in Prometheus text exposition format. */
+    public String export() {
+        List<Map.Entry<String, Metric>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(metrics.entrySet());
+        }
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : snapshot) {
+            entry.getValue().write(entry.getKey(), out);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.googlecode.objectify.Key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Rewrites a page of {@link Upload}s stored in the old schema into the new one, see {@link Upload#migrate}.
+ *
+ * Entities are read through the low-level datastore API, as old properties can't be mapped by Objectify,
+ * then converted to Uploads, migrated, and saved by Objectify, which drops the old properties.
+ *
+ * Responds with a cursor to pass as ?cursor= for the next page, or with nothing when all are done.
+ * Safe to run again, already migrated entities are skipped.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class MigrateUploadsServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(MigrateUploadsServlet.class);
+
+    /** Small enough to fit into request deadline. */
+    static final int PAGE_SIZE = 200;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        Cursor cursor = null;
+        String cursorParam = req.getParameter("cursor");
+        if (cursorParam != null) {
+            try {
+                cursor = Cursor.fromWebSafeString(cursorParam);
+            } catch (IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+                return;
+            }
+        }
+
+        Cursor next = migratePage(cursor);
+
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        if (next != null) {
+            resp.getWriter().write(next.toWebSafeString());
+        }
+    }
+
+    /** @return Cursor of the next page, null if this one was the last. */
+    @Nullable
+    Cursor migratePage(@Nullable Cursor cursor) {
+        FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+        if (cursor != null) {
+            options.startCursor(cursor);
+        }
+        QueryResultList<Entity> page = DatastoreServiceFactory.getDatastoreService()
+                .prepare(new Query(Key.getKind(Upload.class)))
+                .asQueryResultList(options);
+
+        List<Upload> legacy = new ArrayList<>();
+        for (Entity entity : page) {
+            if (Upload.isLegacy(entity)) {
+                Upload upload = ofy().load().fromEntity(entity);
+                upload.migrate(entity);
+                legacy.add(upload);
+            }
+        }
+        if (!legacy.isEmpty()) {
+            ofy().save().entities(legacy).now();
+        }
+        logger.info("Migrated {} of {} uploads", legacy.size(), page.size());
+
+        return page.size() == PAGE_SIZE ? page.getCursor() : null;
+    }
+}
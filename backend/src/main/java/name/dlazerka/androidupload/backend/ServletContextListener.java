@@ -36,6 +36,8 @@ public class ServletContextListener extends GuiceServletContextListener {
     protected Injector getInjector() {
 
         ObjectifyService.register(Upload.class);
+        ObjectifyService.register(ChunkedUpload.class);
+        ObjectifyService.register(UploadChunk.class);
 
         return Guice.createInjector(new GuiceModule());
     }
@@ -52,6 +54,12 @@ public class ServletContextListener extends GuiceServletContextListener {
             serve("/get-upload-url").with(GetUploadUrlServlet.class);
             serve(BLOB_UPLOADED_CALLBACK)
                     .with(UploadedCallbackServlet.class);
+            serve("/chunked-upload").with(ChunkedUploadServlet.class);
+            serve("/upload-by-hash").with(UploadByHashServlet.class);
+            serve("/admin/uploads").with(ListUploadsServlet.class);
+            serve("/admin/metrics").with(MetricsServlet.class);
+            serve("/admin/migrate-uploads").with(MigrateUploadsServlet.class);
+            serve("/admin/cleanup-chunked-uploads").with(CleanupChunkedUploadsServlet.class);
         }
     }
 }
@@ -17,67 +17,241 @@
 package name.dlazerka.androidupload.backend;
 
 import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.OnSave;
+import com.googlecode.objectify.annotation.Serialize;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * What we've got from Blobstore upload callback.
  *
+ * Only {@link #savedAt} and {@link #ip} are indexed. Of all the request headers only a few useful ones
+ * are kept as fields, the full set is stored (compressed) only if system property
+ * {@value #STORE_RAW_HEADERS_PROPERTY} is true.
+ *
+ * Entities of the old schema (BlobInfo maps and all headers as properties) load with only id, savedAt and ip,
+ * the rest is read raw and rewritten in the new schema by {@link MigrateUploadsServlet}, see {@link #migrate}.
+ *
  * @author Dzmitry Lazerka
  */
 @Entity
 public class Upload {
+    static final String STORE_RAW_HEADERS_PROPERTY = "upload.storeRawHeaders";
+    /** Properties of the old schema. */
+    static final String LEGACY_BLOB_INFOS = "blobInfos";
+    static final String LEGACY_HEADERS = "headers";
+
     @Id
     private Long id;
 
-    private Map<String, List<BlobInfo>> blobInfos;
+    private List<UploadedFile> files;
+
+    /** E.g. "gzip" if blobs are stored compressed, as client has sent them. Null means identity. */
+    private String contentEncoding;
+
+    /** Session the file was uploaded in, if it was uploaded in chunks. */
+    private Key<ChunkedUpload> chunkedUpload;
+
+    /** Set if client had skipped the upload, because we already had the same content there. */
+    private Key<Upload> duplicateOf;
 
     @Index
     private Date savedAt;
-    private Map<String, List<String>> headers;
 
     @Index
     private String ip;
 
+    private String userAgent;
+    /** As guessed by App Engine from IP. */
+    private String country;
+    private String region;
+    private String city;
+
+    /** All request headers. Null unless {@value #STORE_RAW_HEADERS_PROPERTY}. */
+    @Serialize(zip = true)
+    private Map<String, List<String>> rawHeaders;
+
     private Upload() {}
 
     public Upload(
             Map<String, List<BlobInfo>> blobInfos,
+            String contentEncoding,
             Map<String, List<String>> headers,
             String ip) {
-        this.blobInfos = blobInfos;
-        this.headers = headers;
+        this.files = toFiles(blobInfos);
+        this.contentEncoding = contentEncoding;
         this.ip = ip;
+        setHeaders(headers);
+    }
+
+    public Upload(
+            Key<ChunkedUpload> chunkedUpload,
+            UploadedFile file,
+            Map<String, List<String>> headers,
+            String ip) {
+        this.chunkedUpload = chunkedUpload;
+        this.files = Collections.singletonList(file);
+        this.ip = ip;
+        setHeaders(headers);
+    }
+
+    /** Same erasure as the chunked constructor, hence not a constructor. */
+    public static Upload duplicateOf(
+            Key<Upload> original,
+            UploadedFile file,
+            Map<String, List<String>> headers,
+            String ip) {
+        Upload result = new Upload();
+        result.duplicateOf = original;
+        result.files = Collections.singletonList(file);
+        result.ip = ip;
+        result.setHeaders(headers);
+        return result;
+    }
+
+    private static List<UploadedFile> toFiles(Map<String, List<BlobInfo>> blobInfos) {
+        List<UploadedFile> result = new ArrayList<>();
+        for (Map.Entry<String, List<BlobInfo>> entry : blobInfos.entrySet()) {
+            for (BlobInfo blobInfo : entry.getValue()) {
+                result.add(UploadedFile.of(entry.getKey(), blobInfo));
+            }
+        }
+        return result;
+    }
+
+    private void setHeaders(Map<String, List<String>> headers) {
+        userAgent = getHeader(headers, "User-Agent");
+        country = getHeader(headers, "X-AppEngine-Country");
+        region = getHeader(headers, "X-AppEngine-Region");
+        city = getHeader(headers, "X-AppEngine-City");
+        if (Boolean.getBoolean(STORE_RAW_HEADERS_PROPERTY)) {
+            rawHeaders = headers;
+        }
+    }
+
+    /** Header names are case-insensitive, but map keys aren't. */
+    private static String getHeader(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /** @return Whether entity has properties of the old schema, see {@link #migrate}. */
+    static boolean isLegacy(com.google.appengine.api.datastore.Entity entity) {
+        return entity.hasProperty(LEGACY_BLOB_INFOS) || entity.hasProperty(LEGACY_HEADERS);
+    }
+
+    /**
+     * Fills fields of the new schema from properties of the old one, which are read raw, as Objectify can't map
+     * them to classes: "blobInfos" is an embedded map of form field to a list of embedded BlobInfos,
+     * and "headers" is an embedded map of header name to its values.
+     * Those properties are dropped on next save, as there are no fields for them.
+     *
+     * @param entity as loaded from datastore, this upload is loaded from it.
+     */
+    void migrate(com.google.appengine.api.datastore.Entity entity) {
+        Object blobInfos = entity.getProperty(LEGACY_BLOB_INFOS);
+        if (files == null && blobInfos instanceof EmbeddedEntity) {
+            files = new ArrayList<>();
+            for (Map.Entry<String, Object> field : ((EmbeddedEntity) blobInfos).getProperties().entrySet()) {
+                for (Object blobInfo : asList(field.getValue())) {
+                    if (blobInfo instanceof EmbeddedEntity) {
+                        files.add(UploadedFile.ofLegacy(field.getKey(), (EmbeddedEntity) blobInfo));
+                    }
+                }
+            }
+        }
+
+        Object headers = entity.getProperty(LEGACY_HEADERS);
+        if (userAgent == null && headers instanceof EmbeddedEntity) {
+            Map<String, List<String>> map = new HashMap<>();
+            for (Map.Entry<String, Object> header : ((EmbeddedEntity) headers).getProperties().entrySet()) {
+                List<String> values = new ArrayList<>();
+                for (Object value : asList(header.getValue())) {
+                    if (value instanceof String) {
+                        values.add((String) value);
+                    }
+                }
+                map.put(header.getKey(), values);
+            }
+            setHeaders(map);
+        }
+    }
+
+    /** Single values are stored as they are, not as one-element lists. */
+    private static Collection<?> asList(Object value) {
+        if (value instanceof Collection) {
+            return (Collection<?>) value;
+        }
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
     }
 
     @OnSave
     private void onSave() {
-        savedAt = new Date();
+        if (savedAt == null) {
+            savedAt = new Date();
+        }
     }
 
     public Long getId() {
         return id;
     }
 
-    public Map<String, List<BlobInfo>> getBlobInfos() {
-        return blobInfos;
+    public List<UploadedFile> getFiles() {
+        return files;
     }
 
-    public Date getSavedAt() {
-        return savedAt;
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public Key<ChunkedUpload> getChunkedUpload() {
+        return chunkedUpload;
+    }
+
+    public Key<Upload> getDuplicateOf() {
+        return duplicateOf;
     }
 
-    public Map<String, List<String>> getHeaders() {
-        return headers;
+    public Date getSavedAt() {
+        return savedAt;
     }
 
     public String getIp() {
         return ip;
     }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public Map<String, List<String>> getRawHeaders() {
+        return rawHeaders;
+    }
 }
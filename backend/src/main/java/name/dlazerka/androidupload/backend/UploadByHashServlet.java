@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.googlecode.objectify.Key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Lets client skip uploading a file we already have, by its MD5 (same hash that Blobstore computes).
+ *
+ * Both methods take X-Upload-Content-MD5 (hex) and X-Upload-Content-Length headers.
+ * <ul>
+ *     <li>GET responds 200 if there's a blob with this content, 404 otherwise.</li>
+ *     <li>POST also takes X-Upload-Content-Type and X-Upload-File-Name, saves an {@link Upload} pointing to
+ *     the existing blob, and responds with its id. Or with 404 if there's no such blob.</li>
+ * </ul>
+ *
+ * Two steps, so that client can check while uploading, and record only if it has managed to stop the upload.
+ * Blobs stored gzipped never match, their hash is of compressed bytes.
+ *
+ * Only uploads from the same IP match. Otherwise anyone who knows a file's MD5 could attach it to their upload,
+ * and find out that we have it, without having the file. There are no user accounts to scope it by better.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class UploadByHashServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(UploadByHashServlet.class);
+
+    private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+
+    /** How many uploads with the same hash to look through, they're all the same blob anyway. */
+    private static final int MAX_CANDIDATES = 10;
+
+    private final UploadWriter uploadWriter;
+
+    @Inject
+    public UploadByHashServlet(UploadWriter uploadWriter) {
+        this.uploadWriter = uploadWriter;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String md5 = getMd5(req);
+        long length = getLength(req);
+        if (md5 == null || length < 0) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid X-Upload-Content-MD5 or -Length");
+            return;
+        }
+
+        if (find(md5, length, req.getRemoteAddr()) == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such content");
+            return;
+        }
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String md5 = getMd5(req);
+        long length = getLength(req);
+        String contentType = req.getHeader("X-Upload-Content-Type");
+        String fileName = req.getHeader("X-Upload-File-Name");
+        if (md5 == null || length < 0 || contentType == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid X-Upload-Content-MD5, -Length or -Type");
+            return;
+        }
+
+        Upload original = find(md5, length, req.getRemoteAddr());
+        if (original == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such content");
+            return;
+        }
+        UploadedFile originalFile = findFile(original, md5, length);
+
+        Key<Upload> originalKey = original.getDuplicateOf() != null
+                ? original.getDuplicateOf()
+                : Key.create(original);
+        UploadedFile file = new UploadedFile(
+                originalFile.getField(),
+                originalFile.getBlobKey(),
+                fileName,
+                contentType,
+                length,
+                md5);
+        Upload upload = Upload.duplicateOf(
+                originalKey, file, UploadedCallbackServlet.getHeaders(req), req.getRemoteAddr());
+        uploadWriter.save(upload);
+
+        logger.info("Saved {} as duplicate of {}", upload.getId(), originalKey.getId());
+
+        resp.setContentType("text/plain");
+        resp.setStatus(200);
+        resp.getWriter().write(String.valueOf(upload.getId()));
+    }
+
+    /** @return Upload from given IP that has a blob with this content, or null. */
+    private static Upload find(String md5, long length, String ip) {
+        // Equality filters only, served by merging built-in indexes, no composite one needed.
+        Iterable<Upload> candidates = ofy().load().type(Upload.class)
+                .filter("files.md5Hash", md5)
+                .filter("ip", ip)
+                .limit(MAX_CANDIDATES);
+        for (Upload upload : candidates) {
+            if (upload.getContentEncoding() == null && findFile(upload, md5, length) != null) {
+                return upload;
+            }
+        }
+        return null;
+    }
+
+    private static UploadedFile findFile(Upload upload, String md5, long length) {
+        for (UploadedFile file : upload.getFiles()) {
+            if (md5.equals(file.getMd5Hash()) && file.getSize() == length && file.getBlobKey() != null) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static String getMd5(HttpServletRequest req) {
+        String md5 = req.getHeader("X-Upload-Content-MD5");
+        if (md5 == null) {
+            return null;
+        }
+        md5 = md5.toLowerCase();
+        return MD5.matcher(md5).matches() ? md5 : null;
+    }
+
+    /** @return -1 if invalid. */
+    private static long getLength(HttpServletRequest req) {
+        try {
+            return Long.parseLong(req.getHeader("X-Upload-Content-Length"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
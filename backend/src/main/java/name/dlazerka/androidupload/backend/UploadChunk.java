@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.datastore.Blob;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * One chunk of {@link ChunkedUpload}. Id is "sessionId-offset" (decimal), so that a chunk sent again
+ * replaces the same entity, and chunks of a session are a contiguous key range.
+ *
+ * Not a child of the session on purpose: entity group takes about one write per second, while chunks
+ * come in parallel. Deleted once assembled, or by {@link CleanupChunkedUploadsServlet} if never assembled.
+ *
+ * Must be smaller than datastore entity limit (1 MB).
+ *
+ * @author Dzmitry Lazerka
+ */
+@Entity
+public class UploadChunk {
+    @Id
+    private String id;
+
+    private Blob data;
+
+    @Index
+    private Date savedAt;
+
+    private UploadChunk() {}
+
+    public UploadChunk(long uploadId, long offset, byte[] data) {
+        this.id = toId(uploadId, offset);
+        this.data = new Blob(data);
+        this.savedAt = new Date();
+    }
+
+    public static Key<UploadChunk> key(long uploadId, long offset) {
+        return Key.create(UploadChunk.class, toId(uploadId, offset));
+    }
+
+    /** Lower bound of the session's chunk keys, inclusive. */
+    static Key<UploadChunk> firstKey(long uploadId) {
+        return Key.create(UploadChunk.class, uploadId + "-");
+    }
+
+    /** Upper bound of the session's chunk keys, exclusive. '.' comes right after '-'. */
+    static Key<UploadChunk> lastKey(long uploadId) {
+        return Key.create(UploadChunk.class, uploadId + ".");
+    }
+
+    private static String toId(long uploadId, long offset) {
+        return uploadId + "-" + offset;
+    }
+
+    /** @return Offset of the chunk with given key. */
+    static long getOffset(Key<UploadChunk> key) {
+        String id = key.getName();
+        return Long.parseLong(id.substring(id.indexOf('-') + 1));
+    }
+
+    public byte[] getData() {
+        return data.getBytes();
+    }
+
+    public Date getSavedAt() {
+        return savedAt;
+    }
+}
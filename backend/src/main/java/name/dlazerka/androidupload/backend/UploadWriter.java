@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.inject.Singleton;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Saves {@link Upload}s of concurrent requests in groups: one batch put instead of one put per request.
+ *
+ * Group commit: the first request to come becomes a leader and saves everything queued so far,
+ * the others wait meanwhile, and their entities go with the next batch. With a single request there's no delay
+ * at all, and under a burst each request waits at most for one batch put before its own.
+ *
+ * Every caller returns only after its entity is durably saved, or throws if it wasn't,
+ * so a callback is never acknowledged before it's persisted.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class UploadWriter {
+    private static final Logger logger = LoggerFactory.getLogger(UploadWriter.class);
+
+    /** Datastore allows up to 500 entities per put, but big ones also hit request size limit. */
+    static final int MAX_BATCH = 100;
+
+    private final Object lock = new Object();
+    /** Guarded by lock. */
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    /** Guarded by lock. */
+    private boolean flushing;
+
+    private static class Pending {
+        final Upload upload;
+        /** Guarded by lock. */
+        boolean done;
+        /** Guarded by lock. */
+        RuntimeException error;
+
+        Pending(Upload upload) {
+            this.upload = upload;
+        }
+    }
+
+    /** Blocks until the upload is saved, after which it has an id. */
+    public void save(Upload upload) {
+        Pending pending = new Pending(upload);
+        synchronized (lock) {
+            queue.add(pending);
+        }
+
+        while (true) {
+            List<Pending> batch;
+            synchronized (lock) {
+                while (flushing && !pending.done) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while saving upload", e);
+                    }
+                }
+                if (pending.done) {
+                    break;
+                }
+
+                // Our turn to lead.
+                flushing = true;
+                batch = new ArrayList<>(Math.min(queue.size(), MAX_BATCH));
+                while (!queue.isEmpty() && batch.size() < MAX_BATCH) {
+                    batch.add(queue.poll());
+                }
+            }
+
+            flush(batch);
+        }
+
+        if (pending.error != null) {
+            throw new RuntimeException("Cannot save upload", pending.error);
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        List<Upload> uploads = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            uploads.add(pending.upload);
+        }
+
+        RuntimeException error = null;
+        try {
+            put(uploads);
+            logger.debug("Saved batch of {}", uploads.size());
+        } catch (RuntimeException e) {
+            logger.error("Cannot save batch of {}", uploads.size(), e);
+            error = e;
+        }
+
+        synchronized (lock) {
+            for (Pending pending : batch) {
+                pending.done = true;
+                pending.error = error;
+            }
+            flushing = false;
+            lock.notifyAll();
+        }
+    }
+
+    /** One batch put, package-private for tests. */
+    void put(List<Upload> uploads) {
+        ofy().save().entities(uploads).now();
+    }
+}
@@ -30,17 +30,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import static com.googlecode.objectify.ObjectifyService.ofy;
-
 /**
- * Just saves the received Blob.
+ * Just saves the received Blobs, as one {@link Upload}, even if client has sent many files in one request.
  * This servlet must be as simple as possible, because if we get an exception here, we'll lose the callback.
+ * Saves are grouped with concurrent callbacks by {@link UploadWriter}, but still done before responding.
  *
  * @author Dzmitry Lazerka
  */
@@ -48,8 +48,41 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
 public class UploadedCallbackServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory.getLogger(UploadedCallbackServlet.class);
 
+    /** Set by {@link GetUploadUrlServlet} if client is going to upload gzipped file. */
+    static final String CONTENT_ENCODING_PARAM = "content_encoding";
+
+    private final UploadWriter uploadWriter;
+
+    private final Metrics.Counter requests;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter bytesReceived;
+    private final Metrics.Counter filesReceived;
+    private final Metrics.Histogram latency;
+    private final Metrics.Histogram datastoreLatency;
+
+    @Inject
+    public UploadedCallbackServlet(UploadWriter uploadWriter, Metrics metrics) {
+        this.uploadWriter = uploadWriter;
+        this.requests = metrics.counter("upload_callback_requests_total");
+        this.rejected = metrics.counter("upload_callback_rejected_total");
+        this.bytesReceived = metrics.counter("upload_callback_bytes_total");
+        this.filesReceived = metrics.counter("upload_callback_files_total");
+        this.latency = metrics.histogram("upload_callback_latency_ms");
+        this.datastoreLatency = metrics.histogram("upload_callback_datastore_write_ms");
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long startedAt = System.nanoTime();
+        requests.increment();
+        try {
+            saveUpload(req, resp);
+        } finally {
+            latency.recordSince(startedAt);
+        }
+    }
+
+    private void saveUpload(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
         // Usually:
         // Content-Type
@@ -68,26 +101,44 @@ public class UploadedCallbackServlet extends HttpServlet {
         //
         if (!headerNames.contains("X-AppEngine-BlobUpload")) {
             logger.warn("No header X-AppEngine-BlobUpload, ip: {}, headerNames: {}", req.getRemoteAddr(), headerNames);
+            rejected.increment();
             resp.sendError(403, "Forbidden");
             return;
         }
 
         // Save all those headers just in case.
-        Map<String, List<String>> headers = new HashMap<>();
-        for (String headerName : headerNames) {
-            @SuppressWarnings("unchecked")
-            ArrayList<String> value = Collections.list(req.getHeaders(headerName));
-            headers.put(headerName, value);
-        }
+        Map<String, List<String>> headers = getHeaders(req);
 
         BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
         Map<String, List<BlobInfo>> blobs = blobstoreService.getBlobInfos(req);
+        for (List<BlobInfo> blobInfos : blobs.values()) {
+            filesReceived.add(blobInfos.size());
+            for (BlobInfo blobInfo : blobInfos) {
+                bytesReceived.add(blobInfo.getSize());
+            }
+        }
 
-        Upload upload = new Upload(blobs, headers, req.getRemoteAddr());
-        ofy().save().entity(upload).now();
+        String contentEncoding = req.getParameter(CONTENT_ENCODING_PARAM);
+
+        Upload upload = new Upload(blobs, contentEncoding, headers, req.getRemoteAddr());
+        long savingAt = System.nanoTime();
+        uploadWriter.save(upload);
+        datastoreLatency.recordSince(savingAt);
 
         logger.info("Saved " + upload.getId());
 
         resp.setStatus(200);
     }
+
+    static Map<String, List<String>> getHeaders(HttpServletRequest req) {
+        Map<String, List<String>> headers = new HashMap<>();
+        @SuppressWarnings("unchecked")
+        List<String> headerNames = Collections.list(req.getHeaderNames());
+        for (String headerName : headerNames) {
+            @SuppressWarnings("unchecked")
+            ArrayList<String> value = Collections.list(req.getHeaders(headerName));
+            headers.put(headerName, value);
+        }
+        return headers;
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * One file of an {@link Upload}, embedded into it.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class UploadedFile {
+    /** Form field the file came in. */
+    private String field;
+    /** Of a Cloud Storage object if file was uploaded in chunks, see {@link Upload#getChunkedUpload()}. */
+    private BlobKey blobKey;
+    private String fileName;
+    private String contentType;
+    private long size;
+    /** Hex, as Blobstore computes it, or as ChunkedUploadServlet does. Indexed for {@link UploadByHashServlet}. */
+    @Index
+    private String md5Hash;
+
+    private UploadedFile() {}
+
+    public UploadedFile(String field, BlobKey blobKey, String fileName, String contentType, long size, String md5Hash) {
+        this.field = field;
+        this.blobKey = blobKey;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.size = size;
+        this.md5Hash = md5Hash;
+    }
+
+    public static UploadedFile of(String field, BlobInfo blobInfo) {
+        return new UploadedFile(
+                field,
+                blobInfo.getBlobKey(),
+                blobInfo.getFilename(),
+                blobInfo.getContentType(),
+                blobInfo.getSize(),
+                blobInfo.getMd5Hash());
+    }
+
+    /**
+     * From a BlobInfo of the old {@link Upload} schema. Objectify skipped its final fields, so usually there's
+     * only md5Hash, and size is -1.
+     */
+    static UploadedFile ofLegacy(String field, EmbeddedEntity blobInfo) {
+        Object size = blobInfo.getProperty("size");
+        return new UploadedFile(
+                field,
+                (BlobKey) blobInfo.getProperty("blobKey"),
+                (String) blobInfo.getProperty("filename"),
+                (String) blobInfo.getProperty("contentType"),
+                size instanceof Long ? (Long) size : -1,
+                (String) blobInfo.getProperty("md5Hash"));
+    }
+
+    /** @param blobKey of the Cloud Storage object the chunks were assembled into. */
+    public static UploadedFile of(ChunkedUpload chunkedUpload, BlobKey blobKey, String md5Hash) {
+        return new UploadedFile(
+                null,
+                blobKey,
+                chunkedUpload.getFileName(),
+                chunkedUpload.getContentType(),
+                chunkedUpload.getLength(),
+                md5Hash);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public BlobKey getBlobKey() {
+        return blobKey;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMd5Hash() {
+        return md5Hash;
+    }
+}
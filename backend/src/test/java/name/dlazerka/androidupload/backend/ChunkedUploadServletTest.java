@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Assembly of chunks into a single object, with datastore and Cloud Storage in memory.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class ChunkedUploadServletTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalBlobstoreServiceTestConfig());
+    private Closeable session;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        ObjectifyService.register(ChunkedUpload.class);
+        ObjectifyService.register(UploadChunk.class);
+        session = ObjectifyService.begin();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private static byte[] newContent(int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (i * 31);
+        }
+        return result;
+    }
+
+    private static ChunkedUpload newUpload(int length) {
+        ChunkedUpload upload = new ChunkedUpload("text/plain", "file.txt", length, CHUNK_SIZE, "127.0.0.1");
+        ofy().save().entity(upload).now();
+        return upload;
+    }
+
+    /** Saves chunks in reverse, as parallel ones may come. */
+    private static void saveChunks(ChunkedUpload upload, byte[] content, long skipOffset) {
+        for (int offset = (content.length - 1) / CHUNK_SIZE * CHUNK_SIZE; offset >= 0; offset -= CHUNK_SIZE) {
+            if (offset != skipOffset) {
+                byte[] data = Arrays.copyOfRange(content, offset, Math.min(offset + CHUNK_SIZE, content.length));
+                ofy().save().entity(new UploadChunk(upload.getId(), offset, data)).now();
+            }
+        }
+        ofy().clear();
+    }
+
+    private static String md5(byte[] content) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void assemblesInOrder() throws Exception {
+        // More chunks than a batch, so that "10000" comes after "9000", not before.
+        byte[] content = newContent(CHUNK_SIZE * (ChunkedUploadServlet.ASSEMBLE_BATCH + 3) + 123);
+        ChunkedUpload upload = newUpload(content.length);
+        saveChunks(upload, content, -1);
+
+        UploadedFile file = ChunkedUploadServlet.assemble(upload);
+
+        assertNotNull(file);
+        assertNotNull(file.getBlobKey());
+        assertEquals(content.length, file.getSize());
+        assertEquals(md5(content), file.getMd5Hash());
+    }
+
+    @Test
+    public void missingChunk() throws Exception {
+        byte[] content = newContent(CHUNK_SIZE * 3);
+        ChunkedUpload upload = newUpload(content.length);
+        saveChunks(upload, content, CHUNK_SIZE);
+
+        assertNull(ChunkedUploadServlet.assemble(upload));
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        ChunkedUpload upload = newUpload(0);
+
+        UploadedFile file = ChunkedUploadServlet.assemble(upload);
+
+        assertNotNull(file);
+        assertEquals(md5(new byte[0]), file.getMd5Hash());
+    }
+
+    @Test
+    public void chunkKeysOfOtherSessionsAreOutOfRange() throws Exception {
+        long id = 12;
+        assertTrue(UploadChunk.firstKey(id).compareTo(UploadChunk.key(id, 0)) < 0);
+        assertTrue(UploadChunk.lastKey(id).compareTo(UploadChunk.key(id, 99000)) > 0);
+        assertTrue(UploadChunk.lastKey(id).compareTo(UploadChunk.key(123, 0)) < 0);
+        assertTrue(UploadChunk.firstKey(id).compareTo(UploadChunk.key(1, 0)) > 0);
+        assertEquals(99000, UploadChunk.getOffset(UploadChunk.key(id, 99000)));
+    }
+}
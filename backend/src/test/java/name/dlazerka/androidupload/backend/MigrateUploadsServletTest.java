@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migration of {@link Upload}s saved by the old schema, with datastore in memory.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class MigrateUploadsServletTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    private Closeable session;
+
+    /** Upload entity as the old schema has saved it. */
+    @com.googlecode.objectify.annotation.Entity(name = "Upload")
+    static class LegacyUpload {
+        @Id
+        Long id;
+        Map<String, List<BlobInfo>> blobInfos;
+        @Index
+        Date savedAt;
+        Map<String, List<String>> headers;
+        @Index
+        String ip;
+    }
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        ObjectifyService.register(LegacyUpload.class);
+        session = ObjectifyService.begin();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    /** Saves one in the old schema, then registers the new one, as the app does after the update. */
+    private long saveLegacy() {
+        LegacyUpload legacy = new LegacyUpload();
+        BlobInfo blobInfo = new BlobInfo(
+                new BlobKey("blob-1"), "image/jpeg", new Date(), "photo.jpg", 12345, "0123456789abcdef");
+        legacy.blobInfos = Collections.singletonMap("file", Collections.singletonList(blobInfo));
+        legacy.savedAt = new Date(1000);
+        legacy.headers = Collections.singletonMap("User-Agent", Arrays.asList("TestAgent/1.0"));
+        legacy.ip = "10.0.0.1";
+        ofy().save().entity(legacy).now();
+        ofy().clear();
+
+        ObjectifyService.setFactory(new ObjectifyFactory());
+        ObjectifyService.register(Upload.class);
+        session.close();
+        session = ObjectifyService.begin();
+        return legacy.id;
+    }
+
+    @Test
+    public void legacyLoadsWithoutMigration() throws Exception {
+        long id = saveLegacy();
+
+        Upload upload = ofy().load().type(Upload.class).id(id).now();
+
+        assertNotNull(upload);
+        assertEquals("10.0.0.1", upload.getIp());
+        assertEquals(new Date(1000), upload.getSavedAt());
+    }
+
+    @Test
+    public void migratesLegacy() throws Exception {
+        long id = saveLegacy();
+
+        assertNull(new MigrateUploadsServlet().migratePage(null));
+        ofy().clear();
+
+        Upload upload = ofy().load().type(Upload.class).id(id).now();
+        assertEquals("TestAgent/1.0", upload.getUserAgent());
+        assertEquals(new Date(1000), upload.getSavedAt());
+        assertEquals(1, upload.getFiles().size());
+        UploadedFile file = upload.getFiles().get(0);
+        assertEquals("file", file.getField());
+        assertEquals("0123456789abcdef", file.getMd5Hash());
+
+        Entity entity = DatastoreServiceFactory.getDatastoreService().get(
+                com.googlecode.objectify.Key.create(Upload.class, id).getRaw());
+        assertFalse(Upload.isLegacy(entity));
+    }
+
+    @Test
+    public void skipsMigrated() throws Exception {
+        long id = saveLegacy();
+        new MigrateUploadsServlet().migratePage(null);
+        ofy().clear();
+        Date savedAt = ofy().load().type(Upload.class).id(id).now().getSavedAt();
+
+        new MigrateUploadsServlet().migratePage(null);
+        ofy().clear();
+
+        Upload upload = ofy().load().type(Upload.class).id(id).now();
+        assertEquals(savedAt, upload.getSavedAt());
+        assertEquals(1, upload.getFiles().size());
+        assertTrue(upload.getUserAgent() != null);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.backend;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Group commit of {@link UploadWriter}, with puts recorded instead of going to datastore.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class UploadWriterTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    /** Sizes of batches put, in order. */
+    private final List<Integer> batches = new CopyOnWriteArrayList<>();
+    /** First put waits for it, so that others queue up meanwhile. */
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch firstPutStarted = new CountDownLatch(1);
+    /** Put with this number (from 1) throws. */
+    private volatile int failingPut;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private final UploadWriter writer = new UploadWriter() {
+        @Override
+        void put(List<Upload> uploads) {
+            batches.add(uploads.size());
+            if (batches.size() == 1) {
+                firstPutStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (batches.size() == failingPut) {
+                throw new IllegalStateException("Datastore is down");
+            }
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+        }
+    }
+
+    private static Upload newUpload() {
+        return new Upload(
+                Collections.<String, List<BlobInfo>>emptyMap(),
+                null,
+                Collections.<String, List<String>>emptyMap(),
+                "127.0.0.1");
+    }
+
+    private Thread startSave() {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writer.save(newUpload());
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        };
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /** Starts a leader, whose put blocks, then followers, and waits until they all are queued behind it. */
+    private void startBlockedSaves(int followers) throws InterruptedException {
+        startSave();
+        assertTrue(firstPutStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < followers; i++) {
+            started.add(startSave());
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (Thread thread : started) {
+            while (thread.getState() != Thread.State.WAITING) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Not queued: " + thread.getState());
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private void awaitAll() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void singleSaveGoesRightAway() throws Exception {
+        release.countDown();
+        writer.save(newUpload());
+
+        assertEquals(Collections.singletonList(1), batches);
+    }
+
+    @Test
+    public void savesQueuedDuringPutGoInOneBatch() throws Exception {
+        startBlockedSaves(10);
+        release.countDown();
+        awaitAll();
+
+        assertEquals(Arrays.asList(1, 10), batches);
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void batchIsLimited() throws Exception {
+        startBlockedSaves(UploadWriter.MAX_BATCH + 5);
+        release.countDown();
+        awaitAll();
+
+        assertEquals(Arrays.asList(1, UploadWriter.MAX_BATCH, 5), batches);
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void failedPutFailsEveryoneInBatchOnly() throws Exception {
+        failingPut = 2;
+        startBlockedSaves(3);
+        release.countDown();
+        awaitAll();
+
+        assertEquals(3, errors.get());
+
+        writer.save(newUpload());
+        assertEquals(Arrays.asList(1, 3, 1), batches);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package name.dlazerka.androidupload.upload;
+
+import android.os.ParcelFileDescriptor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Throughput of {@link UploadListeningBody#writeTo} into an Okio sink that discards everything,
+ * i.e. the cost of the upload path itself, without network.
+ *
+ * Bytes per second are reported by the "bytes" counter, allocation rate by the gc profiler.
+ *
+ * @author Dzmitry Lazerka
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadListeningBodyBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    /**
+     * Size of body, as ChunkedUploader would slice the file. 0 means whole file in one body,
+     * app doesn't do that with gzip, see {@link UploadListeningBody}.
+     */
+    @Param({"0", "524288"})
+    public int chunkSize;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private File file;
+    private ParcelFileDescriptor fd;
+    private BufferedSink sink;
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("upload-benchmark", ".txt");
+        writeTextLike(file, fileSize);
+        fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        sink = Okio.buffer(Okio.sink(new DiscardingOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fd.close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    @Benchmark
+    public void writeTo(Bytes bytes) throws IOException {
+        // Same sampling as the app uses.
+        UploadProgressSampler progress = new UploadProgressSampler(fileSize, 100, 0.01f);
+        int bodySize = chunkSize == 0 ? fileSize : chunkSize;
+        for (long offset = 0; offset < fileSize; offset += bodySize) {
+            long length = Math.min(bodySize, fileSize - offset);
+            new UploadListeningBody(fd, "text/plain", offset, length, gzip, progress).writeTo(sink);
+        }
+        bytes.bytes += fileSize;
+    }
+
+    /** Random words, so that gzip has something to do, but not too easy. */
+    private static void writeTextLike(File file, int size) throws IOException {
+        Random random = new Random(42);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = random.nextInt(8) == 0 ? (byte) ' ' : (byte) ('a' + random.nextInt(26));
+        }
+        OutputStream out = new FileOutputStream(file);
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+}
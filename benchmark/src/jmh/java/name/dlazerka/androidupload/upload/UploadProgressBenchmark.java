@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package name.dlazerka.androidupload.upload;
+
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observer;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Per-event cost of progress reporting: {@link UploadProgressSampler#add} as called for every transfer,
+ * and fan-out of {@link UploadStatus} to subscribers of {@link UploadStatusObservables}, either right on
+ * the calling (I/O) thread, or through {@link LatestValueHandoff} as UploadTask does it.
+ *
+ * @author Dzmitry Lazerka
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UploadProgressBenchmark {
+    private static final Uri FILE_PATH = Uri.parse("file:///sdcard/benchmark.jpg");
+
+    @Param({"0", "1", "4", "16"})
+    public int subscribers;
+
+    /** Whether sampler throttles as in the app, otherwise it publishes every transfer. */
+    @Param({"true", "false"})
+    public boolean sampled;
+
+    private UploadProgressSampler sampler;
+    private Observer<UploadStatus> statusObserver;
+    private UploadProgress progress;
+    private ExecutorService statusExecutor;
+    private LatestValueHandoff<UploadProgress> handoff;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        Action1<Object> consume = new Action1<Object>() {
+            @Override
+            public void call(Object o) {
+                blackhole.consume(o);
+            }
+        };
+
+        // Never completes, so every event goes through the sampling decision.
+        sampler = sampled
+                ? new UploadProgressSampler(Long.MAX_VALUE, 100, 0.01f)
+                : new UploadProgressSampler(Long.MAX_VALUE, 0, 0);
+        for (int i = 0; i < subscribers; i++) {
+            sampler.getObservable().subscribe(consume);
+        }
+
+        UploadStatusObservables.createSubject(FILE_PATH);
+        for (int i = 0; i < subscribers; i++) {
+            UploadStatusObservables.getObservable(FILE_PATH).subscribe(consume);
+        }
+        statusObserver = UploadStatusObservables.getObserver(FILE_PATH);
+        progress = new UploadProgress(1000, 2000, 100, 10000);
+
+        statusExecutor = Executors.newSingleThreadExecutor();
+        handoff = new LatestValueHandoff<>(
+                Schedulers.from(statusExecutor).createWorker(),
+                new Action1<UploadProgress>() {
+                    @Override
+                    public void call(UploadProgress progress) {
+                        statusObserver.onNext(new UploadStatus(progress));
+                    }
+                });
+    }
+
+    @TearDown
+    public void tearDown() {
+        handoff.stop();
+        statusExecutor.shutdown();
+        UploadStatusObservables.removeSubject(FILE_PATH);
+    }
+
+    @Benchmark
+    public void samplerAdd() {
+        sampler.add(8192);
+    }
+
+    @Benchmark
+    public void statusFanOut() {
+        statusObserver.onNext(new UploadStatus(progress));
+    }
+
+    /** What's left for I/O thread, fan-out itself goes on status thread. */
+    @Benchmark
+    public void statusHandoff() {
+        handoff.call(progress);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * JVM stand-in for the Android class, only what the upload path uses.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class ParcelFileDescriptor implements Closeable {
+    public static final int MODE_READ_ONLY = 0x10000000;
+
+    private final File file;
+
+    private ParcelFileDescriptor(File file) {
+        this.file = file;
+    }
+
+    public static ParcelFileDescriptor open(File file, int mode) throws FileNotFoundException {
+        if (mode != MODE_READ_ONLY) {
+            throw new IllegalArgumentException("Only MODE_READ_ONLY is supported");
+        }
+        if (!file.canRead()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return new ParcelFileDescriptor(file);
+    }
+
+    /**
+     * Android doesn't close the descriptor when a FileInputStream over it is closed, while JVM does.
+     * So every call gets its own descriptor here, costing an extra open() per call.
+     * Caller must close it, as the upload path does.
+     */
+    public FileDescriptor getFileDescriptor() {
+        try {
+            return new RandomAccessFile(file, "r").getFD();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getStatSize() {
+        return file.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Descriptors are closed by their users.
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.loadtest;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.MultipartBuilder;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives backend with many clients uploading the same way UploadTask does: get an upload URL, then POST
+ * the file to it as multipart. Meant to be run against the local dev server (in-memory datastore, local
+ * Blobstore), through {@link LossyProxy} for latency and loss.
+ *
+ * Prints latency percentiles of both steps and of the whole upload, and throughput.
+ *
+ * Options: --server URL (default http://localhost:8080), --clients N, --uploads N (per client),
+ * --file-size BYTES, --latency-ms MS (round trip), --loss RATE (0..1).
+ *
+ * @author Dzmitry Lazerka
+ */
+public class LoadTest {
+    /** Same as app's Application.UPLOAD_FORM_PARAM. */
+    private static final String UPLOAD_FORM_PARAM = "photo";
+    private static final MediaType CONTENT_TYPE = MediaType.parse("image/jpeg");
+
+    private String server = "http://localhost:8080";
+    private int clients = 10;
+    private int uploads = 10;
+    private int fileSize = 1000 * 1000;
+    private long latencyMs = 0;
+    private double loss = 0;
+
+    private final List<Long> getUrlMs = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> postMs = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> totalMs = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicInteger errors = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+        loadTest.parseArgs(args);
+        loadTest.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--server":
+                    server = value;
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--uploads":
+                    uploads = Integer.parseInt(value);
+                    break;
+                case "--file-size":
+                    fileSize = Integer.parseInt(value);
+                    break;
+                case "--latency-ms":
+                    latencyMs = Long.parseLong(value);
+                    break;
+                case "--loss":
+                    loss = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        HttpUrl serverUrl = HttpUrl.parse(server);
+        if (serverUrl == null) {
+            throw new IllegalArgumentException("Invalid --server " + server);
+        }
+        LossyProxy proxy = new LossyProxy(
+                new InetSocketAddress(serverUrl.host(), serverUrl.port()), latencyMs, loss);
+        proxy.start();
+        final HttpUrl proxyUrl = serverUrl.newBuilder().host("localhost").port(proxy.getPort()).build();
+
+        System.out.printf("%d clients x %d uploads of %d bytes, latency %d ms, loss %.3f, via %s%n",
+                clients, uploads, fileSize, latencyMs, loss, proxyUrl);
+
+        // Shared, like in the app, so connections are reused.
+        final OkHttpClient client = new OkHttpClient();
+        client.setReadTimeout(5, TimeUnit.MINUTES);
+        client.setWriteTimeout(5, TimeUnit.MINUTES);
+
+        final CountDownLatch done = new CountDownLatch(clients);
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int clientId = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runClient(client, proxyUrl, clientId);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Client-" + i).start();
+        }
+        done.await();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        proxy.stop();
+
+        report(elapsedMs);
+    }
+
+    private void runClient(OkHttpClient client, HttpUrl proxyUrl, int clientId) {
+        byte[] file = new byte[fileSize];
+        new Random(clientId).nextBytes(file);
+        RequestBody fileBody = RequestBody.create(CONTENT_TYPE, file);
+
+        for (int i = 0; i < uploads; i++) {
+            try {
+                long startedAt = System.nanoTime();
+                HttpUrl uploadUrl = getUploadUrl(client, proxyUrl);
+                long gotUrlAt = System.nanoTime();
+                upload(client, uploadUrl, fileBody, "loadtest-" + clientId + "-" + i + ".jpg");
+                long uploadedAt = System.nanoTime();
+
+                getUrlMs.add(TimeUnit.NANOSECONDS.toMillis(gotUrlAt - startedAt));
+                postMs.add(TimeUnit.NANOSECONDS.toMillis(uploadedAt - gotUrlAt));
+                totalMs.add(TimeUnit.NANOSECONDS.toMillis(uploadedAt - startedAt));
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                System.err.println("Client " + clientId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static HttpUrl getUploadUrl(OkHttpClient client, HttpUrl proxyUrl) throws IOException {
+        Request request = new Request.Builder().url(proxyUrl.resolve("/get-upload-url")).build();
+        Response response = client.newCall(request).execute();
+        String body = response.body().string().trim();
+        if (!response.isSuccessful()) {
+            throw new IOException("get-upload-url: " + response.code() + " " + response.message());
+        }
+        HttpUrl uploadUrl = HttpUrl.parse(body);
+        if (uploadUrl == null) {
+            throw new IOException("Invalid upload URL " + body);
+        }
+        // Dev server gives its own address, go through proxy instead.
+        return uploadUrl.newBuilder().host(proxyUrl.host()).port(proxyUrl.port()).build();
+    }
+
+    private static void upload(OkHttpClient client, HttpUrl uploadUrl, RequestBody fileBody, String fileName)
+            throws IOException {
+        RequestBody requestBody = new MultipartBuilder()
+                .type(MultipartBuilder.FORM)
+                .addFormDataPart(UPLOAD_FORM_PARAM, fileName, fileBody)
+                .build();
+        Request request = new Request.Builder().url(uploadUrl).post(requestBody).build();
+        Response response = client.newCall(request).execute();
+        response.body().close();
+        if (!response.isSuccessful()) {
+            throw new IOException("upload: " + response.code() + " " + response.message());
+        }
+    }
+
+    private void report(long elapsedMs) {
+        int succeeded = totalMs.size();
+        System.out.printf("%d uploads succeeded, %d failed, in %.1f s%n", succeeded, errors.get(), elapsedMs / 1000.0);
+        if (succeeded == 0) {
+            return;
+        }
+        System.out.printf("Throughput: %.1f uploads/s, %.2f MB/s%n",
+                succeeded * 1000.0 / elapsedMs,
+                (double) succeeded * fileSize / 1000 / elapsedMs);
+        printPercentiles("get-upload-url", getUrlMs);
+        printPercentiles("upload", postMs);
+        printPercentiles("total", totalMs);
+    }
+
+    private static void printPercentiles(String name, List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        System.out.printf("%-15s p50 %6d ms, p90 %6d ms, p99 %6d ms, max %6d ms%n",
+                name,
+                percentile(sorted, 0.50),
+                percentile(sorted, 0.90),
+                percentile(sorted, 0.99),
+                sorted.get(sorted.size() - 1));
+    }
+
+    /** Nearest-rank. */
+    private static long percentile(List<Long> sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(rank - 1, 0));
+    }
+}
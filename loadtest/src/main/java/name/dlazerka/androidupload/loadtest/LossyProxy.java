@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Dzmitry Lazerka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package name.dlazerka.androidupload.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Loopback TCP proxy that makes the link look like a mobile one.
+ *
+ * Everything forwarded is delayed by half of the round-trip latency, in each direction.
+ * Loss is modelled the way TCP shows it to an application: a lost segment is retransmitted, so the stream
+ * just stalls for a retransmission timeout, not less than 200 ms.
+ *
+ * @author Dzmitry Lazerka
+ */
+class LossyProxy implements Runnable {
+    /** Minimal retransmission timeout, as in Linux. */
+    private static final long MIN_RTO_MS = 200;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final InetSocketAddress target;
+    private final long latencyMs;
+    private final double lossRate;
+    private final Random random = new Random();
+
+    /**
+     * @param latencyMs round-trip time to add.
+     * @param lossRate probability of a forwarded segment to be "lost", 0..1.
+     */
+    LossyProxy(InetSocketAddress target, long latencyMs, double lossRate) throws IOException {
+        this.serverSocket = new ServerSocket(0);
+        this.target = target;
+        this.latencyMs = latencyMs;
+        this.lossRate = lossRate;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "LossyProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(target.getAddress(), target.getPort());
+                pump(client, server, "up");
+                pump(server, client, "down");
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Proxy: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reader timestamps what it gets, writer sends it on when it's due, so delay doesn't limit throughput,
+     * as on a real link. Writing is in order, so a "lost" segment holds back the ones after it.
+     */
+    private void pump(final Socket from, final Socket to, String direction) {
+        final BlockingQueue<Segment> queue = new LinkedBlockingQueue<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        long dueAt = System.currentTimeMillis() + latencyMs / 2;
+                        if (isLost()) {
+                            dueAt += Math.max(MIN_RTO_MS, latencyMs * 2);
+                        }
+                        queue.add(new Segment(Arrays.copyOf(buffer, read), dueAt));
+                    }
+                } catch (IOException e) {
+                    // Other side is gone, writer will close.
+                }
+                queue.add(new Segment(null, System.currentTimeMillis() + latencyMs / 2));
+            }
+        }, "LossyProxy-" + direction + "-reader");
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Segment segment = queue.take();
+                        long delay = segment.dueAt - System.currentTimeMillis();
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        if (segment.bytes == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        out.write(segment.bytes);
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }
+        }, "LossyProxy-" + direction + "-writer");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static class Segment {
+        /** Null means end of stream. */
+        final byte[] bytes;
+        final long dueAt;
+
+        Segment(byte[] bytes, long dueAt) {
+            this.bytes = bytes;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private boolean isLost() {
+        synchronized (random) {
+            return random.nextDouble() < lossRate;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    void stop() throws IOException {
+        serverSocket.close();
+    }
+}